@@ -0,0 +1,92 @@
+/*
+  Copyright 2013 Peter Rebholz
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package computersarehard.itc.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import computersarehard.itc.ARGBImage;
+import computersarehard.itc.ITCImage;
+import computersarehard.itc.PngOptions;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures ARGB to PNG conversion across image sizes and deflate levels.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ARGBEncodeBenchmark {
+    @Param({"128", "400", "1400"})
+    public int size;
+
+    @Param({"0", "1", "6", "9"})
+    public int level;
+
+    private ARGBImage image;
+
+    @Setup
+    public void setup () {
+        image = (ARGBImage)ITCImage.Format.ARGB.newImage(size, size, Fixtures.argb(size, size));
+    }
+
+    @Benchmark
+    public long writeToStream () throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        image.writeToStream(out, level);
+        return out.count;
+    }
+
+    @Benchmark
+    public long writeToStreamParallel () throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        image.writeToStream(out, PngOptions.DEFAULT.withCompressionLevel(level)
+            .withParallelism(Runtime.getRuntime().availableProcessors()));
+        return out.count;
+    }
+
+    /**
+     * Discards everything written to it, keeping count of the bytes so the encoded size can't be optimized away.
+     */
+    static final class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write (int b) {
+            count++;
+        }
+
+        @Override
+        public void write (byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
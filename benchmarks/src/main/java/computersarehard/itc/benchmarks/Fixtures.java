@@ -0,0 +1,77 @@
+/*
+  Copyright 2013 Peter Rebholz
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package computersarehard.itc.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Builds synthetic .itc files so the benchmarks don't depend on the working directory or on real artwork.
+ */
+final class Fixtures {
+    private static final int ITEM_HEADER_SIZE = 208;
+
+    private Fixtures () {}
+
+    /**
+     * Creates the contents of an .itc file holding one square ARGB image per supplied size.
+     */
+    static byte[] itc (int... sizes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        ByteBuffer itch = ByteBuffer.allocate(284);
+        itch.putInt(284).put(ascii("itch"));
+        itch.position(24);
+        itch.put(ascii("artw"));
+        out.write(itch.array());
+
+        for (int size : sizes) {
+            byte[] data = argb(size, size);
+            ByteBuffer header = ByteBuffer.allocate(ITEM_HEADER_SIZE);
+            header.putInt(ITEM_HEADER_SIZE + data.length).put(ascii("item")).putInt(ITEM_HEADER_SIZE);
+            header.position(header.position() + 16 + 20);
+            header.put(ascii("ARGb")).putInt(0).putInt(size).putInt(size);
+            out.write(header.array());
+            out.write(data);
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Creates ARGB data that looks a little like artwork: smooth gradients with some noise, so that it neither
+     * compresses trivially nor not at all.
+     */
+    static byte[] argb (int width, int height) {
+        Random random = new Random(width * 31 + height);
+        byte[] data = new byte[width * height * 4];
+        for (int y = 0, i = 0; y < height; y++) {
+            for (int x = 0; x < width; x++, i += 4) {
+                data[i] = (byte)0xFF;
+                data[i + 1] = (byte)(x * 255 / width + random.nextInt(8));
+                data[i + 2] = (byte)(y * 255 / height + random.nextInt(8));
+                data[i + 3] = (byte)((x + y) * 127 / (width + height) + random.nextInt(8));
+            }
+        }
+        return data;
+    }
+
+    private static byte[] ascii (String value) {
+        return value.getBytes(java.nio.charset.StandardCharsets.US_ASCII);
+    }
+}
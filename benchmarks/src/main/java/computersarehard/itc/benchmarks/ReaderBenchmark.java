@@ -0,0 +1,118 @@
+/*
+  Copyright 2013 Peter Rebholz
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package computersarehard.itc.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import computersarehard.itc.ITCImage;
+import computersarehard.itc.ITCImageReader;
+import computersarehard.itc.MappedITCImageReader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures parsing of .itc files holding three ARGB images (the layout iTunes uses) of a given largest size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReaderBenchmark {
+    private static final byte[][] FORMATS = new byte[][] {
+        "PNGf".getBytes(), "ARGb".getBytes(), {0, 0, 0, 0x0d}
+    };
+
+    @Param({"400", "1400"})
+    public int size;
+
+    private byte[] itc;
+    private File file;
+
+    @Setup
+    public void setup () throws IOException {
+        itc = Fixtures.itc(size / 4, size / 2, size);
+        file = File.createTempFile("benchmark", ".itc");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(itc);
+        } finally {
+            out.close();
+        }
+    }
+
+    @TearDown
+    public void tearDown () {
+        file.delete();
+    }
+
+    @Benchmark
+    public List<ITCImage> readAll () throws IOException {
+        ITCImageReader reader = new ITCImageReader(new ByteArrayInputStream(itc));
+        try {
+            return reader.readAll();
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Benchmark
+    public ITCImage readImage () throws IOException {
+        ITCImageReader reader = new ITCImageReader(new ByteArrayInputStream(itc));
+        try {
+            return reader.readImage();
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Benchmark
+    public List<ITCImage> readAllMapped () throws IOException {
+        ITCImageReader reader = new MappedITCImageReader(file);
+        try {
+            return reader.readAll();
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int formatValueOf () {
+        int hash = 0;
+        for (byte[] format : FORMATS) {
+            hash += ITCImage.Format.valueOf(format).ordinal();
+        }
+        return hash;
+    }
+}
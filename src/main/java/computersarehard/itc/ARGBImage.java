@@ -15,13 +15,28 @@
 */
 package computersarehard.itc;
 
-import java.io.ByteArrayOutputStream;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.charset.Charset;
-import java.util.zip.CRC32;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.IntBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
 
 /**
  * A {@link ITCimage} subclass that provides additional processing for ARGB images extracted from .itc streams.
@@ -33,25 +48,30 @@ import java.util.zip.DeflaterOutputStream;
  * </p>
  */
 public class ARGBImage extends ITCImage {
-    private static final byte COLOR_TYPE_ALPHA = 6;
-    private static final Charset US_ASCII;
-    private static final int DEFAULT_COMPRESSION = Deflater.NO_COMPRESSION;
-
-    static {
-        try {
-            US_ASCII = Charset.forName("US-ASCII");
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+    public ARGBImage (Format format, long width, long height, byte[] data) {
+        super(format, width, height, data);
     }
 
-    public ARGBImage (Format format, long width, long height, byte[] data) {
+    public ARGBImage (Format format, long width, long height, ByteBuffer data) {
         super(format, width, height, data);
     }
 
+    ARGBImage (Format format, long width, long height, Payload payload) {
+        super(format, width, height, payload);
+    }
+
     @Override
     public void writeToStream (OutputStream output) throws IOException {
-        writeToStream(output, DEFAULT_COMPRESSION);
+        writeToStream(output, PngOptions.DEFAULT);
+    }
+
+    /**
+     * ARGB data has to be converted to PNG, so it can't be transferred straight from the file; the converted image is
+     * written to the channel instead.
+     */
+    @Override
+    public void transferTo (WritableByteChannel target) throws IOException {
+        writeToStream(Channels.newOutputStream(target));
     }
 
     /**
@@ -63,96 +83,183 @@ public class ARGBImage extends ITCImage {
      * @throws IOException If the underlying stream encounters an IOException.
      */
     public void writeToStream (OutputStream output, int deflaterCompressionLevel) throws IOException {
-        // Write the PNG header.
-        output.write(new byte[] {
-            (byte)0x89,
-            (byte)0x50,
-            (byte)0x4e,
-            (byte)0x47,
-            (byte)0x0d,
-            (byte)0x0a,
-            (byte)0x1a,
-            (byte)0x0a
-        });
-        // Settings are all hardcoded...
-        writeHeader(output, (byte)8, COLOR_TYPE_ALPHA, (byte)0, (byte)0, (byte)0);
-        writeARGBData(output, deflaterCompressionLevel);
-        writeBox(output, "IEND", new byte[0]);
+        writeToStream(output, PngOptions.DEFAULT.withCompressionLevel(deflaterCompressionLevel));
     }
 
-    private void writeHeader (OutputStream output, byte depth, byte colorType, byte compression, byte filter,
-        byte interlace) throws IOException
-    {
-        ByteArrayOutputStream buf = new ByteArrayOutputStream();
-
-        writeUnsignedInt(buf, getWidth());
-        writeUnsignedInt(buf, getHeight());
-        buf.write(new byte[] {depth, colorType, compression, filter, interlace});
-        writeBox(output, "IHDR", buf.toByteArray());
+    /**
+     * An alternate method to {@link #writeToStream(OutputStream)} which allows the caller to specify all of the
+     * settings used while encoding the image to PNG, such as the compression level and row filter. Each call encodes
+     * with a new {@link PngEncoder} that is closed afterwards; conversions of many images should reuse an encoder of
+     * their own, or a {@link PngEncoderPool}, instead.
+     *
+     * @param output The stream to which the encoded image will be written.
+     * @param options The settings to use while encoding the PNG image.
+     * @throws IOException If the underlying stream encounters an IOException.
+     */
+    public void writeToStream (OutputStream output, PngOptions options) throws IOException {
+        writeToStream(output, options, ITCMetricsListener.NONE);
     }
 
-    private void writeBox (OutputStream output, String name, byte[] data) throws IOException {
-        CRC32 crc32 = new CRC32();
-        byte[] nameBytes = name.getBytes(US_ASCII);
-        crc32.update(nameBytes);
-
-        if (data.length > 0) {
-            crc32.update(data);
-
-            writeUnsignedInt(output, data.length);
-            output.write(nameBytes);
-            output.write(data);
-            writeSignedInt(output, crc32.getValue());
-        } else {
-            writeUnsignedInt(output, 0);
-            output.write(nameBytes);
-            writeSignedInt(output, crc32.getValue());
+    /**
+     * A variant of {@link #writeToStream(OutputStream, PngOptions)} that reports how long each stage of the
+     * conversion took and how large the PNG image was to a listener.
+     *
+     * @param output The stream to which the encoded image will be written.
+     * @param options The settings to use while encoding the PNG image.
+     * @param listener The listener told about the image once it has been encoded.
+     * @throws IOException If the underlying stream encounters an IOException.
+     */
+    public void writeToStream (OutputStream output, PngOptions options, ITCMetricsListener listener)
+        throws IOException
+    {
+        PngEncoder encoder = new PngEncoder(options);
+        try {
+            encoder.encode(this, output, listener == null ? ITCMetricsListener.NONE : listener);
+        } finally {
+            encoder.close();
         }
     }
 
-    private void writeUnsignedInt (OutputStream out, long value) throws IOException {
-        out.write(new byte[] {
-            (byte)(0xFF & (value >> 24)),
-            (byte)(0xFF & (value >> 16)),
-            (byte)(0xFF & (value >> 8)),
-            (byte)(0xFF & (value)),
-        });
+    /**
+     * Converts the image to a {@link BufferedImage#TYPE_INT_ARGB} {@link BufferedImage} in a single bulk copy, without
+     * encoding it to PNG. ARGB data read as big endian ints is already in the layout {@code TYPE_INT_ARGB} uses, so
+     * no per pixel conversion is needed. The result is a standard image type that Java2D and ImageIO handle quickly.
+     *
+     * @return A new image holding a copy of the pixel data.
+     */
+    public BufferedImage toBufferedImage () {
+        int width = (int)getWidth(), height = (int)getHeight();
+        int[] pixels = new int[width * height];
+        getBuffer().order(ByteOrder.BIG_ENDIAN).asIntBuffer().get(pixels);
+
+        DirectColorModel colorModel = (DirectColorModel)ColorModel.getRGBdefault();
+        WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(pixels, pixels.length), width, height,
+            width, colorModel.getMasks(), null);
+        return new BufferedImage(colorModel, raster, false, null);
     }
 
-    private void writeSignedInt (OutputStream out, long value) throws IOException {
-        int intValue = (int)value;
-        out.write(new byte[] {
-            (byte)(0xFF & (intValue >> 24)),
-            (byte)(0xFF & (intValue >> 16)),
-            (byte)(0xFF & (intValue >> 8)),
-            (byte)(0xFF & (intValue)),
-        });
+    /**
+     * Returns a {@link BufferedImage} view of the image that shares the array returned by {@link #getData()} as its
+     * raster, so nothing is copied when the image was built from an array. Changes to the view's pixels change the
+     * image's data.
+     *
+     * <p>
+     *  The view is a {@link BufferedImage#TYPE_CUSTOM} image with interleaved byte samples, which some Java2D
+     *  operations handle more slowly than {@link #toBufferedImage()}'s standard layout.
+     * </p>
+     *
+     * @return A view of the pixel data.
+     */
+    public BufferedImage asBufferedImage () {
+        int width = (int)getWidth(), height = (int)getHeight();
+        DataBufferByte buffer = new DataBufferByte(getData(), width * height * 4);
+
+        // Samples are stored A, R, G, B; list the band offsets in the color model's R, G, B, A order.
+        WritableRaster raster = Raster.createInterleavedRaster(buffer, width, height, width * 4, 4,
+            new int[] {1, 2, 3, 0}, null);
+        ColorModel colorModel = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB), true, false,
+            Transparency.TRANSLUCENT, DataBuffer.TYPE_BYTE);
+        return new BufferedImage(colorModel, raster, false, null);
     }
 
-    private void writeARGBData (OutputStream output, int compressionLevel) throws IOException {
-        byte[] data = getData();
-        ByteArrayOutputStream buf = new ByteArrayOutputStream();
-
-        for (long y = 0, height = getHeight(); y < height; y++) {
-            buf.write(0);
-            for (long x = 0, width = getWidth(); x < width; x++) {
-                int offset = (int)((y * width) + x) * 4;
-                buf.write(data[offset + 1]);
-                buf.write(data[offset + 2]);
-                buf.write(data[offset + 3]);
-                buf.write(data[offset]);
+    /**
+     * Produces several downscaled copies of the image in a single pass over its pixels, for example
+     * {@code thumbnails(64, 128, 256, 600)}.
+     *
+     * <p>
+     *  Each size is the length of the longer side of the copy; the aspect ratio is kept, and sizes larger than the
+     *  image produce a copy at the original size. Every pixel of a copy is the average of the block of source pixels it
+     *  covers (a box filter), with colors weighted by alpha so transparent pixels don't darken their neighbours. Each
+     *  copy can be written as a PNG with {@link #writeToStream(OutputStream)}.
+     * </p>
+     *
+     * @param sizes The length of the longer side of each copy, in pixels.
+     * @return A downscaled copy of the image for each size, in the same order.
+     */
+    public List<ARGBImage> thumbnails (int... sizes) {
+        int width = (int)getWidth(), height = (int)getHeight();
+        Thumbnail[] thumbnails = new Thumbnail[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            if (sizes[i] < 1) {
+                throw new IllegalArgumentException("Thumbnail size must be at least 1: " + sizes[i]);
+            }
+            int size = Math.min(sizes[i], Math.max(width, height));
+            int thumbnailWidth = Math.max(1, (int)((long)width * size / Math.max(width, height)));
+            int thumbnailHeight = Math.max(1, (int)((long)height * size / Math.max(width, height)));
+            thumbnails[i] = new Thumbnail(width, height, thumbnailWidth, thumbnailHeight);
+        }
+
+        IntBuffer pixels = getBuffer().order(ByteOrder.BIG_ENDIAN).asIntBuffer();
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            pixels.get(row);
+            for (Thumbnail thumbnail : thumbnails) {
+                thumbnail.add(y, row);
             }
         }
 
-        writeData(output, buf.toByteArray(), compressionLevel);
+        List<ARGBImage> images = new ArrayList<ARGBImage>(thumbnails.length);
+        for (Thumbnail thumbnail : thumbnails) {
+            images.add(new ARGBImage(Format.ARGB, thumbnail.width, thumbnail.height, thumbnail.data));
+        }
+        return images;
     }
 
-    private void writeData (OutputStream output, byte[] data, int compressionLevel) throws IOException {
-        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
-        DeflaterOutputStream compressor = new DeflaterOutputStream(compressed, new Deflater(compressionLevel));
-        compressor.write(data);
-        compressor.finish();
+    /**
+     * Accumulates the source rows covering one row of a thumbnail at a time.
+     */
+    private static final class Thumbnail {
+        private final int width;
+        private final int height;
+        private final int sourceHeight;
+        private final int[] columns;
+        private final int[] columnCounts;
+        private final long[] sums;
+        private final byte[] data;
+        private int row = 0;
+        private int rowCount = 0;
 
-        writeBox(output, "IDAT", compressed.toByteArray());
+        private Thumbnail (int sourceWidth, int sourceHeight, int width, int height) {
+            this.width = width;
+            this.height = height;
+            this.sourceHeight = sourceHeight;
+            columns = new int[sourceWidth];
+            columnCounts = new int[width];
+            for (int x = 0; x < sourceWidth; x++) {
+                columns[x] = (int)((long)x * width / sourceWidth);
+                columnCounts[columns[x]]++;
+            }
+            // Alpha, then alpha weighted red, green and blue, for each column.
+            sums = new long[width * 4];
+            data = new byte[width * height * 4];
+        }
+
+        private void add (int sourceY, int[] pixels) {
+            for (int x = 0; x < pixels.length; x++) {
+                int pixel = pixels[x];
+                int alpha = pixel >>> 24;
+                int sum = columns[x] * 4;
+                sums[sum] += alpha;
+                sums[sum + 1] += ((pixel >>> 16) & 0xFF) * alpha;
+                sums[sum + 2] += ((pixel >>> 8) & 0xFF) * alpha;
+                sums[sum + 3] += (pixel & 0xFF) * alpha;
+            }
+            rowCount++;
+
+            // Write the row out once the last source row covering it has been added.
+            if (sourceY == sourceHeight - 1 || (int)((long)(sourceY + 1) * height / sourceHeight) != row) {
+                for (int x = 0, sum = 0, i = row * width * 4; x < width; x++, sum += 4, i += 4) {
+                    long alpha = sums[sum];
+                    long count = (long)columnCounts[x] * rowCount;
+                    data[i] = (byte)((alpha + count / 2) / count);
+                    for (int channel = 1; channel < 4; channel++) {
+                        data[i + channel] = (byte)(alpha == 0 ? 0 : (sums[sum + channel] + alpha / 2) / alpha);
+                    }
+                }
+                Arrays.fill(sums, 0);
+                rowCount = 0;
+                row++;
+            }
+        }
     }
 }
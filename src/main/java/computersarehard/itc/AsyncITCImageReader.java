@@ -0,0 +1,236 @@
+/*
+  Copyright 2013 Peter Rebholz
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package computersarehard.itc;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Reads .itc files without blocking the calling thread.
+ *
+ * <p>
+ *  Files are read with positional reads on an {@link AsynchronousFileChannel}, and every method returns immediately
+ *  with a {@link CompletableFuture}. The futures are completed, and any dependent stages run, on the channel's
+ *  completion handler threads. Only frame headers are read while walking a file; image data is read with one read per
+ *  image, all of which are issued at once.
+ * </p>
+ */
+public final class AsyncITCImageReader {
+    private static final int FRAME_HEADER_SIZE = 8;
+
+    private AsyncITCImageReader () {}
+
+    /**
+     * Reads the table of contents of an .itc file, as {@link ITCImageReader#index()} would.
+     *
+     * @param file The .itc file to read.
+     * @return A future completed with an entry for each image in the file.
+     */
+    public static CompletableFuture<List<ITCEntry>> indexAsync (Path file) {
+        final AsynchronousFileChannel channel;
+        try {
+            channel = open(file);
+        } catch (IOException e) {
+            return failed(e);
+        }
+
+        return closeWhenDone(channel, index(channel, 0, new ArrayList<ITCEntry>(3)));
+    }
+
+    /**
+     * Reads all of the images in an .itc file, as {@link ITCImageReader#readAll()} would.
+     *
+     * @param file The .itc file to read.
+     * @return A future completed with all of the images contained within the file.
+     */
+    public static CompletableFuture<List<ITCImage>> readAllAsync (Path file) {
+        final AsynchronousFileChannel channel;
+        try {
+            channel = open(file);
+        } catch (IOException e) {
+            return failed(e);
+        }
+
+        CompletableFuture<List<ITCImage>> images = index(channel, 0, new ArrayList<ITCEntry>(3))
+            .thenCompose(entries -> readImages(channel, entries));
+        return closeWhenDone(channel, images);
+    }
+
+    /**
+     * Reads a single image described by an entry previously returned by {@link #indexAsync(Path)} or
+     * {@link ITCImageReader#index()}.
+     *
+     * @param file The .itc file containing the image.
+     * @param entry The entry describing the image.
+     * @return A future completed with the image.
+     */
+    public static CompletableFuture<ITCImage> readImageAsync (Path file, ITCEntry entry) {
+        final AsynchronousFileChannel channel;
+        try {
+            channel = open(file);
+        } catch (IOException e) {
+            return failed(e);
+        }
+
+        return closeWhenDone(channel, readImage(channel, entry));
+    }
+
+    private static AsynchronousFileChannel open (Path file) throws IOException {
+        return AsynchronousFileChannel.open(file, StandardOpenOption.READ);
+    }
+
+    private static CompletableFuture<List<ITCEntry>> index (final AsynchronousFileChannel channel,
+        final long position, final List<ITCEntry> entries)
+    {
+        return read(channel, FRAME_HEADER_SIZE, position).thenCompose(header -> {
+            if (header.remaining() < FRAME_HEADER_SIZE) {
+                return CompletableFuture.completedFuture(entries);
+            }
+
+            long size = header.getInt() & 0xFFFFFFFFL;
+            String name = readName(header);
+            return parseFrame(channel, position + FRAME_HEADER_SIZE, size, name, entries)
+                .thenCompose(next -> index(channel, next, entries));
+        });
+    }
+
+    /**
+     * Parses the body of a frame, mirroring ITCImageReader.handleFrame(), and completes with the position of the next
+     * frame.
+     */
+    private static CompletableFuture<Long> parseFrame (final AsynchronousFileChannel channel, final long body,
+        final long size, String name, final List<ITCEntry> entries)
+    {
+        if (ITCImageReader.ITCH_FRAME.equals(name)) {
+            return read(channel, 4, body + 16).thenCompose(subframe -> {
+                requireRemaining(subframe, 4);
+                return parseFrame(channel, body + 20, size, readName(subframe), entries);
+            });
+        } else if (ITCImageReader.ARTW_FRAME.equals(name)) {
+            // This section contains no data; assumed obsolete section per itc.py
+            return CompletableFuture.completedFuture(body + 256);
+        } else if (ITCImageReader.ITEM_FRAME.equals(name)) {
+            return read(channel, ITCImageReader.ITEM_HEADER_SIZE, body).thenApply(header -> {
+                requireRemaining(header, ITCImageReader.ITEM_HEADER_SIZE);
+                ITCEntry entry = ITCImageReader.parseItemHeader(header, body - FRAME_HEADER_SIZE, size);
+                entries.add(entry);
+                return entry.getOffset() + entry.getLength();
+            });
+        } else {
+            return failed(new ITCImageReader.UnexpectedFrameException("Encountered unexpected frame.",
+                new ITCImageReader.Frame(size, name)));
+        }
+    }
+
+    private static CompletableFuture<List<ITCImage>> readImages (AsynchronousFileChannel channel,
+        List<ITCEntry> entries)
+    {
+        final List<CompletableFuture<ITCImage>> reads = new ArrayList<CompletableFuture<ITCImage>>(entries.size());
+        for (ITCEntry entry : entries) {
+            reads.add(readImage(channel, entry));
+        }
+
+        return CompletableFuture.allOf(reads.toArray(new CompletableFuture<?>[reads.size()])).thenApply(done -> {
+            List<ITCImage> images = new ArrayList<ITCImage>(reads.size());
+            for (CompletableFuture<ITCImage> read : reads) {
+                images.add(read.join());
+            }
+            return images;
+        });
+    }
+
+    private static CompletableFuture<ITCImage> readImage (AsynchronousFileChannel channel, final ITCEntry entry) {
+        return read(channel, entry.getLength(), entry.getOffset()).thenApply(data -> {
+            requireRemaining(data, entry.getLength());
+            return entry.getFormat().newImage(entry.getWidth(), entry.getHeight(), data);
+        });
+    }
+
+    /**
+     * Reads {@code length} bytes starting at {@code position}, completing with a flipped buffer that only holds fewer
+     * bytes if the end of the file was reached.
+     */
+    private static CompletableFuture<ByteBuffer> read (AsynchronousFileChannel channel, int length, long position) {
+        CompletableFuture<ByteBuffer> future = new CompletableFuture<ByteBuffer>();
+        readFully(channel, ByteBuffer.allocate(length), position, future);
+        return future;
+    }
+
+    private static void readFully (final AsynchronousFileChannel channel, final ByteBuffer buffer,
+        final long position, final CompletableFuture<ByteBuffer> future)
+    {
+        try {
+            channel.read(buffer, position, null, new CompletionHandler<Integer, Void>() {
+                @Override
+                public void completed (Integer read, Void attachment) {
+                    if (read < 0 || !buffer.hasRemaining()) {
+                        ((Buffer)buffer).flip();
+                        future.complete(buffer);
+                    } else {
+                        readFully(channel, buffer, position + read, future);
+                    }
+                }
+
+                @Override
+                public void failed (Throwable e, Void attachment) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RuntimeException e) {
+            // Thrown directly if the channel has already been closed, for example.
+            future.completeExceptionally(e);
+        }
+    }
+
+    private static void requireRemaining (ByteBuffer buffer, int expected) {
+        if (buffer.remaining() != expected) {
+            throw new CompletionException(new IOException(String.format(
+                "Expected to read %d bytes but instead got %d", expected, buffer.remaining())));
+        }
+    }
+
+    private static String readName (ByteBuffer buffer) {
+        byte[] name = new byte[4];
+        buffer.get(name);
+        return new String(name, StandardCharsets.US_ASCII);
+    }
+
+    private static <T> CompletableFuture<T> closeWhenDone (final AsynchronousFileChannel channel,
+        CompletableFuture<T> future)
+    {
+        return future.whenComplete((result, e) -> {
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+        });
+    }
+
+    private static <T> CompletableFuture<T> failed (Throwable e) {
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        future.completeExceptionally(e);
+        return future;
+    }
+}
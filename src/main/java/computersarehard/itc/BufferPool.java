@@ -0,0 +1,114 @@
+/*
+  Copyright 2013 Peter Rebholz
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package computersarehard.itc;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread safe pool of byte arrays, used by {@link ITCImageReader} to hold image data when reading with a pool.
+ *
+ * <p>
+ *  Arrays are grouped into size classes that are powers of two, so an array leased for a request is at least as large as
+ *  requested but may be up to twice as large. Returned arrays are retained until the pool holds a configurable number of
+ *  bytes, after which further returns are simply left for the garbage collector. Requests larger than the largest size
+ *  class are never pooled.
+ * </p>
+ */
+public class BufferPool {
+    private static final int MIN_CLASS = 12;
+    private static final int MAX_CLASS = 30;
+    private static final long DEFAULT_MAX_RETAINED = 64L * 1024 * 1024;
+
+    private final long maxRetainedBytes;
+    private final AtomicLong retainedBytes = new AtomicLong();
+    private final ConcurrentLinkedQueue<byte[]>[] classes;
+
+    /**
+     * Constructs a new pool that retains up to 64MB of unused arrays.
+     */
+    public BufferPool () {
+        this(DEFAULT_MAX_RETAINED);
+    }
+
+    /**
+     * Constructs a new pool.
+     *
+     * @param maxRetainedBytes The maximum total size of the unused arrays held by the pool.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool (long maxRetainedBytes) {
+        if (maxRetainedBytes < 0) {
+            throw new IllegalArgumentException("Maximum retained bytes cannot be negative");
+        }
+
+        this.maxRetainedBytes = maxRetainedBytes;
+        classes = new ConcurrentLinkedQueue[MAX_CLASS - MIN_CLASS + 1];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new ConcurrentLinkedQueue<byte[]>();
+        }
+    }
+
+    /**
+     * Leases an array of at least {@code size} bytes. The contents of the array are undefined.
+     *
+     * @param size The minimum length of the array.
+     * @return An array that should be given back with {@link #release(byte[])} once it is no longer used.
+     */
+    public byte[] acquire (int size) {
+        int sizeClass = sizeClass(size);
+        if (sizeClass > MAX_CLASS) {
+            return new byte[size];
+        }
+
+        byte[] buffer = classes[sizeClass - MIN_CLASS].poll();
+        if (buffer == null) {
+            return new byte[1 << sizeClass];
+        }
+        retainedBytes.addAndGet(-buffer.length);
+        return buffer;
+    }
+
+    /**
+     * Gives an array back to the pool. The caller must not use the array afterwards. Arrays that did not come from
+     * {@link #acquire(int)} are ignored.
+     *
+     * @param buffer The array to return.
+     */
+    public void release (byte[] buffer) {
+        int sizeClass = sizeClass(buffer.length);
+        if (sizeClass > MAX_CLASS || buffer.length != 1 << sizeClass) {
+            return;
+        }
+
+        if (retainedBytes.addAndGet(buffer.length) > maxRetainedBytes) {
+            retainedBytes.addAndGet(-buffer.length);
+            return;
+        }
+        classes[sizeClass - MIN_CLASS].offer(buffer);
+    }
+
+    /**
+     * @return The total size of the unused arrays currently held by the pool.
+     */
+    public long getRetainedBytes () {
+        return retainedBytes.get();
+    }
+
+    private static int sizeClass (int size) {
+        return Math.max(MIN_CLASS, 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1));
+    }
+}
@@ -0,0 +1,534 @@
+/*
+  Copyright 2013 Peter Rebholz
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package computersarehard.itc;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A size bounded cache of encoded images stored on disk, so that converted artwork survives restarts.
+ *
+ * <p>
+ *  Entries are keyed in the same way as an {@link EncodedImageCache}: by the .itc file's path and modification time,
+ *  the offset of the image within it and, for ARGB images, the {@link PngOptions}. Each key is reduced to a 64 bit
+ *  XXH64 hash.
+ * </p>
+ *
+ * <p>
+ *  Encoded images are appended to numbered segment files of a fixed maximum size. A compact index file, memory mapped
+ *  while the cache is open, maps each key hash to the segment, offset and length of its image using an open addressing
+ *  table of 24 byte slots. Once the segments hold more than the configured number of bytes the oldest segment is
+ *  deleted as a whole, along with its index entries. Every image is stored with its key hash and a CRC-32, which are
+ *  checked when it is read back, so images lost or torn by a crash are simply encoded again.
+ * </p>
+ *
+ * <p>
+ *  A cache directory can only be opened by one {@link DiskImageCache} at a time, which is enforced with a lock on the
+ *  index file. The cache is thread safe, and images are read and encoded outside its lock.
+ * </p>
+ */
+public class DiskImageCache implements Closeable {
+    private static final int MAGIC = 0x49544343;
+    // Version 2 changed how keys are hashed.
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 32;
+    private static final int SLOT_SIZE = 24;
+    // Key hash, length and CRC-32 before each image in a segment.
+    private static final int RECORD_HEADER_SIZE = 16;
+    private static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final int DEFAULT_INDEX_SLOTS = 64 * 1024;
+    private static final String INDEX_NAME = "index";
+
+    private final File directory;
+    private final long maximumBytes;
+    private final int segmentSize;
+    private final FileChannel indexChannel;
+    private final FileLock lock;
+    private final MappedByteBuffer index;
+    private final int slots;
+    private final Map<Integer, FileChannel> segments = new HashMap<Integer, FileChannel>();
+    private int oldest;
+    private int current;
+    private long size = 0;
+    private int entryCount = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private boolean closed = false;
+
+    /**
+     * Opens a cache in the supplied directory, creating it if necessary, using 64MB segments and an index with room for
+     * 48K images.
+     *
+     * @param directory The directory holding the cache's files.
+     * @param maximumBytes The maximum total size of the segment files.
+     * @throws IOException If the directory or the cache's files can't be opened, or another cache has the directory
+     * open.
+     */
+    public DiskImageCache (File directory, long maximumBytes) throws IOException {
+        this(directory, maximumBytes, DEFAULT_SEGMENT_SIZE, DEFAULT_INDEX_SLOTS);
+    }
+
+    /**
+     * Opens a cache in the supplied directory, creating it if necessary.
+     *
+     * @param directory The directory holding the cache's files.
+     * @param maximumBytes The maximum total size of the segment files.
+     * @param segmentSize The maximum size of each segment file, and so the amount of the cache evicted at once.
+     * @param indexSlots The number of slots in a newly created index, rounded up to a power of two. The index is kept
+     * at most three quarters full. Ignored if the directory already holds an index.
+     * @throws IOException If the directory or the cache's files can't be opened, or another cache has the directory
+     * open.
+     */
+    public DiskImageCache (File directory, long maximumBytes, int segmentSize, int indexSlots) throws IOException {
+        if (maximumBytes < 0) {
+            throw new IllegalArgumentException("Maximum bytes cannot be negative");
+        }
+        if (segmentSize <= RECORD_HEADER_SIZE) {
+            throw new IllegalArgumentException("Segment size is too small: " + segmentSize);
+        }
+        if (indexSlots < 1 || indexSlots > (Integer.MAX_VALUE - HEADER_SIZE) / SLOT_SIZE / 2) {
+            throw new IllegalArgumentException("Invalid number of index slots: " + indexSlots);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create cache directory " + directory);
+        }
+
+        this.directory = directory;
+        this.maximumBytes = maximumBytes;
+        this.segmentSize = segmentSize;
+        indexChannel = FileChannel.open(new File(directory, INDEX_NAME).toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            lock = lockIndex(directory);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && indexChannel.read(header, header.position()) > 0) {
+            }
+            ((Buffer)header).flip();
+            int existingSlots = header.remaining() == HEADER_SIZE && header.getInt(0) == MAGIC
+                && header.getInt(4) == VERSION ? header.getInt(8) : 0;
+            if (existingSlots > 0 && indexChannel.size() == HEADER_SIZE + (long)existingSlots * SLOT_SIZE) {
+                slots = existingSlots;
+                oldest = header.getInt(12);
+                current = header.getInt(16);
+            } else {
+                // A new or unreadable index; any segments it referred to are useless without it.
+                indexChannel.truncate(0);
+                slots = Integer.highestOneBit(indexSlots * 2 - 1);
+                oldest = current = 0;
+                deleteSegments();
+            }
+            index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long)slots * SLOT_SIZE);
+            index.putInt(0, MAGIC);
+            index.putInt(4, VERSION);
+            index.putInt(8, slots);
+            writeHeader();
+
+            for (int segment = oldest; segment <= current; segment++) {
+                File file = segmentFile(segment);
+                if (file.exists() || segment == current) {
+                    FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    segments.put(segment, channel);
+                    size += channel.size();
+                }
+            }
+            // Drop entries whose segment is gone or that point past the end of it, as after a crash.
+            purge(0);
+        } catch (IOException e) {
+            closeChannels();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns an encoded image, reading and encoding it and storing the result if it isn't already cached.
+     *
+     * @param file The .itc file containing the image.
+     * @param entry The image's entry in the file, as returned by {@link ITCImageReader#index()}.
+     * @param options The settings ARGB images are encoded with. Ignored for other formats.
+     * @return A read only buffer positioned at zero containing the encoded image.
+     * @throws IOException If reading the image or the cache fails.
+     * @throws IllegalStateException If the cache has been closed.
+     */
+    public ByteBuffer get (File file, ITCEntry entry, PngOptions options) throws IOException {
+        long key = new EncodedImageKey(file, entry, options).persistentHash();
+        byte[] cached = read(key);
+        if (cached != null) {
+            return ByteBuffer.wrap(cached).asReadOnlyBuffer();
+        }
+
+        byte[] encoded = EncodedImageCache.encodeImage(file, entry, options);
+        put(key, encoded);
+        return ByteBuffer.wrap(encoded).asReadOnlyBuffer();
+    }
+
+    /**
+     * Writes an encoded image to a stream, reading and encoding it first if it isn't already cached.
+     *
+     * @param file The .itc file containing the image.
+     * @param entry The image's entry in the file, as returned by {@link ITCImageReader#index()}.
+     * @param options The settings ARGB images are encoded with. Ignored for other formats.
+     * @param output The stream to which the encoded image will be written.
+     * @throws IOException If reading the image or the cache, or writing to the stream fails.
+     * @throws IllegalStateException If the cache has been closed.
+     */
+    public void writeTo (File file, ITCEntry entry, PngOptions options, OutputStream output) throws IOException {
+        ByteBuffer encoded = get(file, entry, options);
+        Channels.newChannel(output).write(encoded);
+    }
+
+    /**
+     * @return The total size in bytes of the segment files, including images whose entries have been replaced.
+     */
+    public synchronized long getSize () {
+        return size;
+    }
+
+    /**
+     * @return The number of images currently held.
+     */
+    public synchronized int getEntryCount () {
+        return entryCount;
+    }
+
+    /**
+     * @return The number of lookups since the cache was opened that found the image already encoded.
+     */
+    public synchronized long getHitCount () {
+        return hits;
+    }
+
+    /**
+     * @return The number of lookups since the cache was opened that had to read and encode the image.
+     */
+    public synchronized long getMissCount () {
+        return misses;
+    }
+
+    /**
+     * Flushes the index to disk and closes the cache's files.
+     */
+    @Override
+    public synchronized void close () throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        index.force();
+        lock.release();
+        closeChannels();
+    }
+
+    /**
+     * Reads and checks the image stored for a key.
+     *
+     * @return The encoded image, or null if it isn't cached or failed its checks.
+     */
+    private byte[] read (long key) throws IOException {
+        FileChannel channel;
+        long offset;
+        int length;
+        synchronized (this) {
+            requireOpen();
+            int slot = find(key);
+            if (slot < 0) {
+                misses++;
+                return null;
+            }
+            int position = HEADER_SIZE + slot * SLOT_SIZE;
+            channel = segment(index.getInt(position + 8));
+            offset = index.getInt(position + 12) & 0xFFFFFFFFL;
+            length = index.getInt(position + 16);
+            if (channel == null) {
+                misses++;
+                return null;
+            }
+            if (!isValidLength(length)) {
+                // A damaged slot; drop it rather than allocating whatever it claims to hold.
+                misses++;
+                purge(key);
+                return null;
+            }
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+        boolean valid;
+        boolean channelClosed = false;
+        try {
+            while (record.hasRemaining() && channel.read(record, offset + record.position()) > 0) {
+            }
+            valid = !record.hasRemaining() && record.getLong(0) == key && record.getInt(8) == length;
+            if (valid) {
+                CRC32 crc32 = new CRC32();
+                crc32.update(record.array(), RECORD_HEADER_SIZE, length);
+                valid = record.getInt(12) == (int)crc32.getValue();
+            }
+        } catch (ClosedChannelException e) {
+            // Either the segment was evicted while it was being read or a thread reading it was interrupted, which
+            // closes the channel for every thread. The next lookup reopens it if it still exists.
+            if (Thread.currentThread().isInterrupted()) {
+                throw e;
+            }
+            valid = false;
+            channelClosed = true;
+        }
+
+        synchronized (this) {
+            if (!valid) {
+                misses++;
+                if (!closed && !channelClosed) {
+                    purge(key);
+                }
+                return null;
+            }
+            hits++;
+        }
+        return Arrays.copyOfRange(record.array(), RECORD_HEADER_SIZE, record.capacity());
+    }
+
+    private synchronized void put (long key, byte[] encoded) throws IOException {
+        requireOpen();
+        int recordSize = RECORD_HEADER_SIZE + encoded.length;
+        if (recordSize > segmentSize || recordSize > maximumBytes) {
+            return;
+        }
+        while (entryCount >= slots / 4 * 3 && find(key) < 0) {
+            if (oldest == current) {
+                return;
+            }
+            evictOldest();
+        }
+
+        FileChannel channel = segment(current);
+        if (channel.size() + recordSize > segmentSize) {
+            current++;
+            channel = FileChannel.open(segmentFile(current).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            segments.put(current, channel);
+            writeHeader();
+        }
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(encoded);
+        ByteBuffer record = ByteBuffer.allocate(recordSize);
+        record.putLong(key).putInt(encoded.length).putInt((int)crc32.getValue()).put(encoded);
+        ((Buffer)record).flip();
+        long offset = channel.size();
+        while (record.hasRemaining()) {
+            channel.write(record, offset + record.position());
+        }
+        size += recordSize;
+
+        insert(key, current, (int)offset, encoded.length);
+        while (size > maximumBytes && oldest < current) {
+            evictOldest();
+        }
+    }
+
+    /**
+     * Deletes the oldest segment and every index entry that refers to it.
+     */
+    private void evictOldest () throws IOException {
+        FileChannel channel = segments.remove(oldest);
+        if (channel != null) {
+            size -= segmentFile(oldest).length();
+            channel.close();
+        }
+        segmentFile(oldest).delete();
+        oldest++;
+        writeHeader();
+        purge(0);
+    }
+
+    /**
+     * Rebuilds the index without entries that refer to missing segments or past the end of them (as after a crash),
+     * and without the entry for a key unless it is zero.
+     */
+    private void purge (long key) throws IOException {
+        int count = 0;
+        for (int slot = 0; slot < slots; slot++) {
+            if (index.getLong(HEADER_SIZE + slot * SLOT_SIZE) != 0) {
+                count++;
+            }
+        }
+        long[] keys = new long[count];
+        int[] values = new int[count * 3];
+
+        count = 0;
+        for (int slot = 0; slot < slots; slot++) {
+            int position = HEADER_SIZE + slot * SLOT_SIZE;
+            long slotKey = index.getLong(position);
+            if (slotKey == 0) {
+                continue;
+            }
+            int segment = index.getInt(position + 8);
+            long offset = index.getInt(position + 12) & 0xFFFFFFFFL;
+            int length = index.getInt(position + 16);
+            FileChannel channel = segment(segment);
+            if (slotKey == key || channel == null || !isValidLength(length)
+                || offset + RECORD_HEADER_SIZE + length > channel.size())
+            {
+                continue;
+            }
+            keys[count] = slotKey;
+            values[count * 3] = segment;
+            values[count * 3 + 1] = (int)offset;
+            values[count * 3 + 2] = length;
+            count++;
+        }
+
+        for (int position = HEADER_SIZE; position < index.capacity(); position += 8) {
+            index.putLong(position, 0);
+        }
+        entryCount = 0;
+        for (int i = 0; i < count; i++) {
+            insert(keys[i], values[i * 3], values[i * 3 + 1], values[i * 3 + 2]);
+        }
+    }
+
+    /**
+     * @return The slot holding the key, or -1 if it isn't in the index.
+     */
+    private int find (long key) {
+        for (int slot = home(key); ; slot = (slot + 1) & (slots - 1)) {
+            long slotKey = index.getLong(HEADER_SIZE + slot * SLOT_SIZE);
+            if (slotKey == key) {
+                return slot;
+            } else if (slotKey == 0) {
+                return -1;
+            }
+        }
+    }
+
+    private void insert (long key, int segment, int offset, int length) {
+        int slot = home(key);
+        while (true) {
+            long slotKey = index.getLong(HEADER_SIZE + slot * SLOT_SIZE);
+            if (slotKey == key || slotKey == 0) {
+                if (slotKey == 0) {
+                    entryCount++;
+                }
+                break;
+            }
+            slot = (slot + 1) & (slots - 1);
+        }
+        int position = HEADER_SIZE + slot * SLOT_SIZE;
+        index.putInt(position + 8, segment);
+        index.putInt(position + 12, offset);
+        index.putInt(position + 16, length);
+        // The key goes in last, so a slot is never found before it is complete.
+        index.putLong(position, key);
+    }
+
+    /**
+     * Returns the channel for a segment, opening it again if it has been closed by an interrupted thread.
+     *
+     * @return The segment's channel, or null if the segment has been evicted.
+     */
+    private FileChannel segment (int segment) throws IOException {
+        FileChannel channel = segments.get(segment);
+        if (channel != null && !channel.isOpen()) {
+            channel = FileChannel.open(segmentFile(segment).toPath(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+            segments.put(segment, channel);
+        }
+        return channel;
+    }
+
+    /**
+     * @return True if an image of this length could have been stored, as every record fits in a single segment.
+     */
+    private boolean isValidLength (int length) {
+        return length >= 0 && length <= segmentSize - RECORD_HEADER_SIZE;
+    }
+
+    private int home (long key) {
+        return (int)(key ^ (key >>> 32)) & (slots - 1);
+    }
+
+    private void writeHeader () {
+        index.putInt(12, oldest);
+        index.putInt(16, current);
+    }
+
+    private void requireOpen () {
+        if (closed) {
+            throw new IllegalStateException("Cache has been closed");
+        }
+    }
+
+    /**
+     * Locks the index so that no other cache, in this process or another, can open the directory at the same time.
+     */
+    private FileLock lockIndex (File directory) throws IOException {
+        FileLock lock;
+        try {
+            lock = indexChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null) {
+            throw new IOException("Cache directory is already in use: " + directory);
+        }
+        return lock;
+    }
+
+    private File segmentFile (int segment) {
+        return new File(directory, String.format("segment-%08x", segment));
+    }
+
+    private void deleteSegments () {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().startsWith("segment-")) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private void closeChannels () throws IOException {
+        IOException failure = null;
+        for (FileChannel channel : segments.values()) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        segments.clear();
+        indexChannel.close();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+  Copyright 2013 Peter Rebholz
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package computersarehard.itc;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A Java Flight Recorder event recorded by {@link PngEncoder} (and so by {@link ARGBImage#writeToStream(
+ * java.io.OutputStream)}) for each image encoded as a PNG.
+ */
+@Name("computersarehard.itc.EncodePng")
+@Label("Encode PNG")
+@Category("ITC")
+@Description("An ARGB image encoded as a PNG")
+final class EncodePngEvent extends Event {
+    @Label("Width")
+    long width;
+
+    @Label("Height")
+    long height;
+
+    @Label("Compression Level")
+    int compressionLevel;
+
+    @Label("Filter")
+    String filter;
+
+    @Label("Color Type")
+    @Description("The PNG color type written, after any color type reduction")
+    int colorType;
+
+    @Label("Parallelism")
+    int parallelism;
+
+    @Label("Raw Size")
+    @Description("The size of the ARGB data")
+    @DataAmount
+    long rawBytes;
+
+    @Label("Compressed Size")
+    @Description("The size of the PNG file written")
+    @DataAmount
+    long compressedBytes;
+}
@@ -0,0 +1,250 @@
+/*
+  Copyright 2013 Peter Rebholz
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package computersarehard.itc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A thread safe, size bounded cache of encoded images, for servers that convert the same popular artwork over and
+ * over again.
+ *
+ * <p>
+ *  Entries are keyed by the .itc file's path and modification time, the offset of the image within it (as given by
+ *  an {@link ITCEntry}) and, for ARGB images, the {@link PngOptions} they were encoded with. A file that is modified
+ *  is therefore never served stale, though its old entries stay until they are evicted. Each entry holds the complete
+ *  encoded file, exactly as {@link ITCImage#writeToStream(OutputStream)} would write it, and once the entries hold
+ *  more than the configured number of bytes the least recently used are evicted.
+ * </p>
+ *
+ * <p>
+ *  Entries can optionally be held in direct buffers outside the Java heap, which keeps a large cache from adding to
+ *  garbage collection pauses.
+ * </p>
+ *
+ * <pre>
+ *     EncodedImageCache cache = new EncodedImageCache(256L * 1024 * 1024, true);
+ *     for (ITCEntry entry : new ITCImageReader(new FileInputStream(file)).index()) {
+ *         cache.writeTo(file, entry, options, output);
+ *     }
+ * </pre>
+ */
+public class EncodedImageCache {
+    private final long maximumBytes;
+    private final boolean direct;
+    // Access ordered, so iteration starts at the least recently used entry.
+    private final LinkedHashMap<EncodedImageKey, ByteBuffer> entries =
+        new LinkedHashMap<EncodedImageKey, ByteBuffer>(64, 0.75f, true);
+    private long size = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Constructs a new cache that holds its entries on the heap.
+     *
+     * @param maximumBytes The maximum total size of the encoded images held by the cache.
+     */
+    public EncodedImageCache (long maximumBytes) {
+        this(maximumBytes, false);
+    }
+
+    /**
+     * Constructs a new cache.
+     *
+     * @param maximumBytes The maximum total size of the encoded images held by the cache.
+     * @param direct True to hold encoded images in direct buffers outside the Java heap.
+     */
+    public EncodedImageCache (long maximumBytes, boolean direct) {
+        if (maximumBytes < 0) {
+            throw new IllegalArgumentException("Maximum bytes cannot be negative");
+        }
+
+        this.maximumBytes = maximumBytes;
+        this.direct = direct;
+    }
+
+    /**
+     * Returns an encoded image, reading and encoding it if it isn't already cached. Images larger than the whole cache
+     * are encoded but not kept.
+     *
+     * <p>
+     *  Encoding happens outside the cache's lock, so threads that miss on the same image at the same time will each
+     *  encode it.
+     * </p>
+     *
+     * @param file The .itc file containing the image.
+     * @param entry The image's entry in the file, as returned by {@link ITCImageReader#index()}.
+     * @param options The settings ARGB images are encoded with. Ignored for other formats.
+     * @return A read only buffer positioned at zero containing the encoded image.
+     * @throws IOException If reading the image from the file fails.
+     */
+    public ByteBuffer get (File file, ITCEntry entry, PngOptions options) throws IOException {
+        return get(file, entry, options, null);
+    }
+
+    /**
+     * Returns an encoded image as {@link #get(File, ITCEntry, PngOptions)} does, but encodes ARGB images that aren't
+     * already cached with an encoder leased from a pool rather than a new encoder for each image.
+     *
+     * @param file The .itc file containing the image.
+     * @param entry The image's entry in the file, as returned by {@link ITCImageReader#index()}.
+     * @param encoders The pool to lease an encoder from, whose options ARGB images are encoded with.
+     * @return A read only buffer positioned at zero containing the encoded image.
+     * @throws IOException If reading the image from the file fails, or the thread is interrupted while waiting for an
+     * encoder.
+     */
+    public ByteBuffer get (File file, ITCEntry entry, PngEncoderPool encoders) throws IOException {
+        return get(file, entry, encoders.getOptions(), encoders);
+    }
+
+    private ByteBuffer get (File file, ITCEntry entry, PngOptions options, PngEncoderPool encoders)
+        throws IOException
+    {
+        EncodedImageKey key = new EncodedImageKey(file, entry, options);
+        synchronized (this) {
+            ByteBuffer encoded = entries.get(key);
+            if (encoded != null) {
+                hits++;
+                return encoded.asReadOnlyBuffer();
+            }
+            misses++;
+        }
+
+        ByteBuffer encoded = encode(file, entry, options, encoders);
+        synchronized (this) {
+            if (encoded.capacity() <= maximumBytes) {
+                ByteBuffer previous = entries.put(key, encoded);
+                size += encoded.capacity() - (previous == null ? 0 : previous.capacity());
+                evict();
+            }
+        }
+        return encoded.asReadOnlyBuffer();
+    }
+
+    /**
+     * Writes an encoded image to a stream, reading and encoding it first if it isn't already cached.
+     *
+     * @param file The .itc file containing the image.
+     * @param entry The image's entry in the file, as returned by {@link ITCImageReader#index()}.
+     * @param options The settings ARGB images are encoded with. Ignored for other formats.
+     * @param output The stream to which the encoded image will be written.
+     * @throws IOException If reading the image or writing to the stream fails.
+     */
+    public void writeTo (File file, ITCEntry entry, PngOptions options, OutputStream output) throws IOException {
+        ByteBuffer encoded = get(file, entry, options);
+        if (encoded.hasArray()) {
+            output.write(encoded.array(), encoded.arrayOffset(), encoded.remaining());
+        } else {
+            Channels.newChannel(output).write(encoded);
+        }
+    }
+
+    /**
+     * Removes every entry from the cache.
+     */
+    public synchronized void invalidateAll () {
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * @return The total size in bytes of the encoded images currently held.
+     */
+    public synchronized long getSize () {
+        return size;
+    }
+
+    /**
+     * @return The number of images currently held.
+     */
+    public synchronized int getEntryCount () {
+        return entries.size();
+    }
+
+    /**
+     * @return The number of lookups that found the image already encoded.
+     */
+    public synchronized long getHitCount () {
+        return hits;
+    }
+
+    /**
+     * @return The number of lookups that had to read and encode the image.
+     */
+    public synchronized long getMissCount () {
+        return misses;
+    }
+
+    private ByteBuffer encode (File file, ITCEntry entry, PngOptions options, PngEncoderPool encoders)
+        throws IOException
+    {
+        byte[] encoded = encodeImage(file, entry, options, encoders);
+        if (!direct) {
+            return ByteBuffer.wrap(encoded);
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(encoded.length);
+        buffer.put(encoded);
+        ((Buffer)buffer).flip();
+        return buffer;
+    }
+
+    /**
+     * Reads an image from an .itc file and encodes it as {@link ITCImage#writeToStream(OutputStream)} would.
+     */
+    static byte[] encodeImage (File file, ITCEntry entry, PngOptions options) throws IOException {
+        return encodeImage(file, entry, options, null);
+    }
+
+    /**
+     * Reads an image from an .itc file and encodes it, using an encoder from the pool for ARGB images if there is one.
+     */
+    static byte[] encodeImage (File file, ITCEntry entry, PngOptions options, PngEncoderPool encoders)
+        throws IOException
+    {
+        ITCImage image = entry.getFormat().newImage(entry.getWidth(), entry.getHeight(),
+            Payload.lazy(file, entry.getOffset(), entry.getLength(), false));
+        ByteArrayOutputStream output = new ByteArrayOutputStream(entry.getLength() + 1024);
+        if (image instanceof ARGBImage && encoders != null) {
+            PngEncoder encoder = encoders.acquire();
+            try {
+                encoder.encode((ARGBImage)image, output);
+            } finally {
+                encoders.release(encoder);
+            }
+        } else if (image instanceof ARGBImage) {
+            ((ARGBImage)image).writeToStream(output, options);
+        } else {
+            image.writeToStream(output);
+        }
+        return output.toByteArray();
+    }
+
+    private void evict () {
+        Iterator<Map.Entry<EncodedImageKey, ByteBuffer>> eldest = entries.entrySet().iterator();
+        while (size > maximumBytes && eldest.hasNext()) {
+            size -= eldest.next().getValue().capacity();
+            eldest.remove();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+  Copyright 2013 Peter Rebholz
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package computersarehard.itc;
+
+import java.io.File;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Identifies an encoded image for {@link EncodedImageCache} and {@link DiskImageCache}: the .itc file's path and
+ * modification time, the offset of the image within it and, for ARGB images, the {@link PngOptions} it was encoded
+ * with.
+ */
+final class EncodedImageKey {
+    private final String path;
+    private final long modified;
+    private final long offset;
+    private final PngOptions options;
+
+    EncodedImageKey (File file, ITCEntry entry, PngOptions options) {
+        this.path = file.getAbsolutePath();
+        this.modified = file.lastModified();
+        this.offset = entry.getOffset();
+        // Only ARGB images are affected by the options.
+        this.options = entry.getFormat() == ITCImage.Format.ARGB ? options : null;
+    }
+
+    /**
+     * Returns a 64 bit XXH64 hash of the key that stays the same from one run to the next, for caches that store keys
+     * on disk. Every option that changes the encoded bytes is hashed field by field, so any option added to
+     * {@link PngOptions} must be added here too.
+     *
+     * @return The hash, which is never zero so that zero can mark an empty slot.
+     */
+    long persistentHash () {
+        byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer key = ByteBuffer.allocate(pathBytes.length + 64);
+        key.putInt(pathBytes.length).put(pathBytes).putLong(modified).putLong(offset);
+        if (options != null) {
+            key.put((byte)1)
+                .putInt(options.getCompressionLevel())
+                .putInt(options.getFilter().getType())
+                .putInt(options.getStrategy())
+                .putInt(options.getChunkSize())
+                .putInt(options.getParallelism())
+                .put((byte)(options.isColorReduction() ? 1 : 0))
+                .put((byte)(options.isInterlaced() ? 1 : 0));
+        } else {
+            key.put((byte)0);
+        }
+        ((Buffer)key).flip();
+        long hash = XXHash64.hash(key, 0);
+        return hash == 0 ? 1 : hash;
+    }
+
+    @Override
+    public boolean equals (Object o) {
+        if (!(o instanceof EncodedImageKey)) {
+            return false;
+        }
+        EncodedImageKey other = (EncodedImageKey)o;
+        return path.equals(other.path) && modified == other.modified && offset == other.offset
+            && (options == null ? other.options == null : options.equals(other.options));
+    }
+
+    @Override
+    public int hashCode () {
+        int hash = path.hashCode() * 31 + (int)(modified ^ (modified >>> 32));
+        hash = hash * 31 + (int)(offset ^ (offset >>> 32));
+        return hash * 31 + (options == null ? 0 : options.hashCode());
+    }
+}
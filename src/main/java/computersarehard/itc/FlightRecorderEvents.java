@@ -0,0 +1,127 @@
+/*
+  Copyright 2013 Peter Rebholz
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package computersarehard.itc;
+
+/**
+ * Records the library's Java Flight Recorder events, {@link ReadImageEvent} and {@link EncodePngEvent}, when the
+ * running JVM has the {@code jdk.jfr} module.
+ *
+ * <p>
+ *  The event classes are only referenced from a nested class that isn't loaded unless {@code jdk.jfr} is present, so
+ *  the library still runs on JVMs without it; there, events are simply not recorded. Events are passed around as plain
+ *  objects for the same reason.
+ * </p>
+ */
+final class FlightRecorderEvents {
+    private static final boolean AVAILABLE = isAvailable();
+
+    private FlightRecorderEvents () {
+    }
+
+    /**
+     * Starts timing the read of an image.
+     *
+     * @return The event to pass to {@link #commitReadImage(Object, String, int, ITCEntry)}, or null if there is no
+     * flight recorder.
+     */
+    static Object beginReadImage () {
+        return AVAILABLE ? Events.beginReadImage() : null;
+    }
+
+    /**
+     * Records the read of an image, if the event is enabled and the read took longer than its threshold.
+     */
+    static void commitReadImage (Object event, String source, int frames, ITCEntry entry) {
+        if (event != null) {
+            Events.commitReadImage(event, source, frames, entry);
+        }
+    }
+
+    /**
+     * Starts timing the encoding of an image.
+     *
+     * @return The event to pass to {@link #commitEncodePng(Object, int, int, PngOptions, int, long, long)}, or null if
+     * there is no flight recorder.
+     */
+    static Object beginEncodePng () {
+        return AVAILABLE ? Events.beginEncodePng() : null;
+    }
+
+    /**
+     * Records the encoding of an image, if the event is enabled and the encode took longer than its threshold.
+     */
+    static void commitEncodePng (Object event, int width, int height, PngOptions options, int colorType,
+        long rawBytes, long compressedBytes)
+    {
+        if (event != null) {
+            Events.commitEncodePng(event, width, height, options, colorType, rawBytes, compressedBytes);
+        }
+    }
+
+    private static boolean isAvailable () {
+        try {
+            Class.forName("jdk.jfr.Event", false, FlightRecorderEvents.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    private static final class Events {
+        private static Object beginReadImage () {
+            ReadImageEvent event = new ReadImageEvent();
+            event.begin();
+            return event;
+        }
+
+        private static void commitReadImage (Object recorded, String source, int frames, ITCEntry entry) {
+            ReadImageEvent event = (ReadImageEvent)recorded;
+            if (event.shouldCommit()) {
+                event.source = source;
+                event.frames = frames;
+                event.format = entry.getFormat().name();
+                event.width = entry.getWidth();
+                event.height = entry.getHeight();
+                event.offset = entry.getOffset();
+                event.bytes = entry.getLength();
+                event.commit();
+            }
+        }
+
+        private static Object beginEncodePng () {
+            EncodePngEvent event = new EncodePngEvent();
+            event.begin();
+            return event;
+        }
+
+        private static void commitEncodePng (Object recorded, int width, int height, PngOptions options,
+            int colorType, long rawBytes, long compressedBytes)
+        {
+            EncodePngEvent event = (EncodePngEvent)recorded;
+            if (event.shouldCommit()) {
+                event.width = width;
+                event.height = height;
+                event.compressionLevel = options.getCompressionLevel();
+                event.filter = options.getFilter().name();
+                event.colorType = colorType;
+                event.parallelism = options.getParallelism();
+                event.rawBytes = rawBytes;
+                event.compressedBytes = compressedBytes;
+                event.commit();
+            }
+        }
+    }
+}
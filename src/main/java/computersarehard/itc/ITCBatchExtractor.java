@@ -0,0 +1,155 @@
+/*
+  Copyright 2013 Peter Rebholz
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package computersarehard.itc;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Reads every .itc file beneath a directory (such as an iTunes artwork cache) in parallel.
+ *
+ * <p>
+ *  Directories are walked by a {@link ForkJoinPool}, so idle workers steal whole subtrees or single files from busy
+ *  ones. Each file is read with a {@link MappedITCImageReader} and its images are handed to a {@link Callback} on the
+ *  worker thread that read them, so any extraction or conversion done by the callback runs in parallel as well.
+ * </p>
+ */
+public class ITCBatchExtractor {
+    private static final String ITC_EXTENSION = ".itc";
+
+    private final int parallelism;
+
+    /**
+     * Constructs a new {@link ITCBatchExtractor} that uses one worker per available processor.
+     */
+    public ITCBatchExtractor () {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructs a new {@link ITCBatchExtractor} with a fixed number of workers.
+     *
+     * @param parallelism The maximum number of files to process at once.
+     */
+    public ITCBatchExtractor (int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        }
+
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Reads every .itc file in the supplied directory and its subdirectories, returning once all of them have been
+     * processed. Files and directories that cannot be read are reported to {@link Callback#onFailure(File, Exception)}
+     * and do not stop the remaining files from being processed.
+     *
+     * @param directory The directory to search for .itc files.
+     * @param callback Receives the result for each file. Called concurrently from several threads.
+     */
+    public void extract (File directory, Callback callback) {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new DirectoryTask(directory, callback));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Receives the outcome of reading each file. Implementations must be thread safe.
+     */
+    public interface Callback {
+        /**
+         * Called with the images read from a file. Any exception thrown is passed on to
+         * {@link #onFailure(File, Exception)}.
+         *
+         * @param file The .itc file that was read.
+         * @param images The images contained within the file.
+         * @throws Exception If processing the images failed.
+         */
+        void onImages (File file, List<ITCImage> images) throws Exception;
+
+        /**
+         * Called when a file or directory could not be processed.
+         *
+         * @param file The file or directory that failed.
+         * @param e The cause of the failure.
+         */
+        void onFailure (File file, Exception e);
+    }
+
+    private static class DirectoryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final File directory;
+        private final Callback callback;
+
+        private DirectoryTask (File directory, Callback callback) {
+            this.directory = directory;
+            this.callback = callback;
+        }
+
+        @Override
+        protected void compute () {
+            File[] children = directory.listFiles();
+            if (children == null) {
+                callback.onFailure(directory, new IOException("Unable to list directory " + directory));
+                return;
+            }
+
+            List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    tasks.add(new DirectoryTask(child, callback));
+                } else if (child.getName().toLowerCase().endsWith(ITC_EXTENSION)) {
+                    tasks.add(new FileTask(child, callback));
+                }
+            }
+            invokeAll(tasks);
+        }
+    }
+
+    private static class FileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final File file;
+        private final Callback callback;
+
+        private FileTask (File file, Callback callback) {
+            this.file = file;
+            this.callback = callback;
+        }
+
+        @Override
+        protected void compute () {
+            try {
+                ITCImageReader reader = new MappedITCImageReader(file);
+                List<ITCImage> images;
+                try {
+                    images = reader.readAll();
+                } finally {
+                    reader.close();
+                }
+                callback.onImages(file, images);
+            } catch (Exception e) {
+                callback.onFailure(file, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+  Copyright 2013 Peter Rebholz
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package computersarehard.itc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recognises images whose data is identical, such as the copies of an album's artwork that the iTunes artwork cache
+ * keeps for every track, so that each distinct image only has to be stored or converted once.
+ *
+ * <p>
+ *  Each image's data is hashed with XXH64, and the first image seen with a given format, dimensions, data length and
+ *  hash becomes the canonical image for it. Later images with the same data are replaced by that canonical instance.
+ *  Like other content addressed stores, the key is trusted rather than comparing the data byte for byte, so the data
+ *  of lazily read images is never loaded just to deduplicate them:
+ * </p>
+ *
+ * <pre>
+ *     ITCDeduplicator deduplicator = new ITCDeduplicator();
+ *     Set&lt;ITCImage&gt; converted = Collections.newSetFromMap(new IdentityHashMap&lt;ITCImage, Boolean&gt;());
+ *     for (File file : files) {
+ *         for (ITCImage image : deduplicator.readAll(new MappedITCImageReader(file))) {
+ *             if (converted.add(image)) {
+ *                 // The first occurrence of this image, so convert it.
+ *             }
+ *         }
+ *     }
+ * </pre>
+ *
+ * <p>
+ *  Canonical images are kept (along with their data) until {@link #clear()} is called. A deduplicator can be shared
+ *  between threads, for example by an {@link ITCBatchExtractor.Callback}.
+ * </p>
+ */
+public class ITCDeduplicator {
+    private final ConcurrentMap<Key, ITCImage> images = new ConcurrentHashMap<Key, ITCImage>();
+    private final AtomicLong duplicates = new AtomicLong();
+
+    /**
+     * Returns the canonical instance of an image: either an earlier image with identical data, or the supplied image
+     * itself if its data hasn't been seen before. Images are considered identical when their format, dimensions, data
+     * length and 64 bit hash all match.
+     *
+     * @param image The image to look up.
+     * @return The canonical image with the same format, size and data.
+     * @throws java.io.UncheckedIOException If the image's data had to be loaded and reading it failed.
+     */
+    public ITCImage deduplicate (ITCImage image) {
+        Key key = new Key(image, hash(image));
+        ITCImage canonical = images.putIfAbsent(key, image);
+        if (canonical == null || canonical == image) {
+            return image;
+        }
+
+        duplicates.incrementAndGet();
+        return canonical;
+    }
+
+    /**
+     * Reads every image from the reader, replacing any that duplicate an image already seen with the canonical
+     * instance. The duplicates' data is {@link ITCImage#release() released}, and the reader is closed.
+     *
+     * @param reader The reader to read images from.
+     * @return The canonical instance of each image in the reader's stream, in order.
+     * @throws IOException If the reader encounters an IOException.
+     */
+    public List<ITCImage> readAll (ITCImageReader reader) throws IOException {
+        try {
+            reader.setHashingPayloads(true);
+            List<ITCImage> read = reader.readAll();
+            List<ITCImage> canonical = new ArrayList<ITCImage>(read.size());
+            for (ITCImage image : read) {
+                ITCImage deduplicated = deduplicate(image);
+                if (deduplicated != image) {
+                    image.release();
+                }
+                canonical.add(deduplicated);
+            }
+            return canonical;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @return The number of distinct images seen since the deduplicator was created or cleared.
+     */
+    public int getUniqueCount () {
+        return images.size();
+    }
+
+    /**
+     * @return The number of images that were replaced by an earlier identical image.
+     */
+    public long getDuplicateCount () {
+        return duplicates.get();
+    }
+
+    /**
+     * Forgets every canonical image, allowing them to be garbage collected.
+     */
+    public void clear () {
+        images.clear();
+        duplicates.set(0);
+    }
+
+    /**
+     * @return The XXH64 hash of the image's data. Images from a stream read by {@link #readAll(ITCImageReader)} were
+     * hashed as they were read, and lazily read images are hashed straight from their file without being loaded.
+     */
+    static long hash (ITCImage image) {
+        return image.hash();
+    }
+
+    private static final class Key {
+        private final ITCImage.Format format;
+        private final long width;
+        private final long height;
+        private final int length;
+        private final long hash;
+
+        private Key (ITCImage image, long hash) {
+            this.format = image.getFormat();
+            this.width = image.getWidth();
+            this.height = image.getHeight();
+            this.length = image.getDataLength();
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals (Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key)o;
+            return format == other.format && width == other.width && height == other.height
+                && length == other.length && hash == other.hash;
+        }
+
+        @Override
+        public int hashCode () {
+            return (int)(hash ^ (hash >>> 32));
+        }
+    }
+}
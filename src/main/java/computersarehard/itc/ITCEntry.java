@@ -0,0 +1,82 @@
+/*
+  Copyright 2013 Peter Rebholz
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package computersarehard.itc;
+
+/**
+ * A table of contents entry describing a single image within an .itc file, as returned by
+ * {@link ITCImageReader#index()}.
+ *
+ * <p>
+ *  An entry holds everything known about an image except its data: the format, the dimensions, and where the raw
+ *  image data (the payload) can be found in the file.
+ * </p>
+ */
+public final class ITCEntry {
+    private final long offset;
+    private final int length;
+    private final ITCImage.Format format;
+    private final long width;
+    private final long height;
+
+    /**
+     * Constructs a new entry.
+     *
+     * @param offset The offset of the payload in bytes from the start of the file.
+     * @param length The length of the payload in bytes.
+     * @param format The format of the payload.
+     * @param width The width of the image in pixels.
+     * @param height The height of the image in pixels.
+     */
+    public ITCEntry (long offset, int length, ITCImage.Format format, long width, long height) {
+        this.offset = offset;
+        this.length = length;
+        this.format = format;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * @return The offset of the payload in bytes from the start of the file.
+     */
+    public long getOffset () {
+        return offset;
+    }
+
+    /**
+     * @return The length of the payload in bytes.
+     */
+    public int getLength () {
+        return length;
+    }
+
+    public ITCImage.Format getFormat () {
+        return format;
+    }
+
+    public long getWidth () {
+        return width;
+    }
+
+    public long getHeight () {
+        return height;
+    }
+
+    @Override
+    public String toString () {
+        return String.format("{ITCEntry -> offset: %d, length: %d, format: %s, width: %d, height: %d}", offset, length,
+            format, width, height);
+    }
+}
@@ -17,6 +17,10 @@ package computersarehard.itc;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * A class that encapsulates the raw image information that was extracted from an .itc stream.
@@ -36,7 +40,7 @@ import java.io.OutputStream;
  */
 public class ITCImage {
     private final Format format;
-    private final byte[] data;
+    private final Payload payload;
     private final long width;
     private final long height;
 
@@ -49,8 +53,25 @@ public class ITCImage {
      * @param data The raw image data that was extracted from the stream.
      */
     public ITCImage (Format format, long width, long height, byte[] data) {
+        this(format, width, height, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Constructs a new instance whose data is held in a {@link ByteBuffer} rather than an array. The buffer's
+     * remaining bytes are used as the image data, and they are not copied.
+     *
+     * @param format A format identifier for the data as it was represented in the .itc stream.
+     * @param width The width of the image in pixels.
+     * @param height The height of the image in pixels.
+     * @param data The raw image data that was extracted from the stream.
+     */
+    public ITCImage (Format format, long width, long height, ByteBuffer data) {
+        this(format, width, height, Payload.of(data));
+    }
+
+    ITCImage (Format format, long width, long height, Payload payload) {
         this.format = format;
-        this.data = data;
+        this.payload = payload;
         this.width = width;
         this.height = height;
     }
@@ -67,8 +88,44 @@ public class ITCImage {
         return height;
     }
 
+    /**
+     * Returns the raw image data as an array. If the image was constructed from an array, that array is returned;
+     * otherwise (for example images read by a {@link MappedITCImageReader}) the data is copied into a new array on
+     * every call. Prefer {@link #getBuffer()} where a copy is not needed.
+     *
+     * <p>
+     *  Images read by a {@link LazyITCImageReader} load their data from the .itc file when it is first requested.
+     * </p>
+     *
+     * @return The raw image data.
+     * @throws UncheckedIOException If the data had to be loaded and reading it failed.
+     */
     public final byte[] getData () {
-        return data;
+        ByteBuffer data = data();
+        if (data.hasArray() && data.arrayOffset() == 0 && data.array().length == data.remaining()) {
+            return data.array();
+        }
+
+        byte[] copy = new byte[data.remaining()];
+        data.duplicate().get(copy);
+        return copy;
+    }
+
+    /**
+     * Returns a read only view of the raw image data without copying it.
+     *
+     * @return A read only buffer positioned at zero containing the raw image data.
+     * @throws UncheckedIOException If the data had to be loaded and reading it failed.
+     */
+    public final ByteBuffer getBuffer () {
+        return data().asReadOnlyBuffer();
+    }
+
+    /**
+     * @return The size of the raw image data in bytes. Never causes the data to be loaded.
+     */
+    public final int getDataLength () {
+        return payload.length();
     }
 
     /**
@@ -84,7 +141,59 @@ public class ITCImage {
      * @throws IOException If there is an underlying issue writing to the supplied stream.
      */
     public void writeToStream (OutputStream output) throws IOException {
-        output.write(data);
+        ByteBuffer data = payload.buffer();
+        if (data.hasArray()) {
+            output.write(data.array(), data.arrayOffset(), data.remaining());
+        } else {
+            Channels.newChannel(output).write(data.duplicate());
+        }
+    }
+
+    /**
+     * Writes the image to the specified channel, performing the same processing as
+     * {@link #writeToStream(OutputStream)}.
+     *
+     * <p>
+     *  JPEG and PNG images read by a {@link MappedITCImageReader} or {@link LazyITCImageReader} are transferred
+     *  straight from the .itc file with {@link java.nio.channels.FileChannel#transferTo(long, long,
+     *  WritableByteChannel)}, which for file and socket channels lets the operating system copy the data without it
+     *  passing through the Java heap.
+     * </p>
+     *
+     * @param target A blocking channel to which the image data will be written.
+     * @throws IOException If there is an underlying issue writing to the supplied channel.
+     */
+    public void transferTo (WritableByteChannel target) throws IOException {
+        payload.transferTo(target);
+    }
+
+    /**
+     * Releases the resources held by the image. For images read by an {@link ITCImageReader} constructed with a
+     * {@link BufferPool} this gives the array holding the image data back to the pool; for other images it does
+     * nothing. The image's data must not be used after it has been released.
+     */
+    public void release () {
+        payload.release();
+    }
+
+    /**
+     * @return The XXH64 hash of the raw image data.
+     * @throws UncheckedIOException If the data had to be read and reading it failed.
+     */
+    final long hash () {
+        try {
+            return payload.hash();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private ByteBuffer data () {
+        try {
+            return payload.buffer();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     /**
@@ -96,8 +205,8 @@ public class ITCImage {
         JPEG("jpg"),
         ARGB("png") {
             @Override
-            public ITCImage newImage (long width, long height, byte[] data) {
-                return new ARGBImage(this, width, height, data);
+            ITCImage newImage (long width, long height, Payload payload) {
+                return new ARGBImage(this, width, height, payload);
             }
         };
 
@@ -120,8 +229,25 @@ public class ITCImage {
          * @param data The raw image data that was read from the .itc stream.
          * @return A newly created {@link ITCImage} with the specified parameters.
          */
-        public ITCImage newImage (long width, long height, byte[] data) {
-            return new ITCImage(this, width, height, data);
+        public final ITCImage newImage (long width, long height, byte[] data) {
+            return newImage(width, height, ByteBuffer.wrap(data));
+        }
+
+        /**
+         * A variant of {@link #newImage(long, long, byte[])} for data held in a {@link ByteBuffer}. The buffer's
+         * remaining bytes are shared with the new image rather than copied.
+         *
+         * @param width The width of the image in pixels.
+         * @param height The height of the image in pixels.
+         * @param data The raw image data that was read from the .itc stream.
+         * @return A newly created {@link ITCImage} with the specified parameters.
+         */
+        public final ITCImage newImage (long width, long height, ByteBuffer data) {
+            return newImage(width, height, Payload.of(data));
+        }
+
+        ITCImage newImage (long width, long height, Payload payload) {
+            return new ITCImage(this, width, height, payload);
         }
 
         /**
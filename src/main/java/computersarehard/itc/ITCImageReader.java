@@ -15,12 +15,22 @@
 */
 package computersarehard.itc;
 
-import java.io.BufferedInputStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * A 'one shot' class that scans an {@link InputStream} containg iTunes ITC image cache files looking for the
@@ -34,14 +44,24 @@ import java.util.List;
  * @author Peter Rebholz, based on the itc python script by Simon Kennedy: https://launchpad.net/itc
  */
 public class ITCImageReader implements Closeable {
-    private static final String ITCH_FRAME = "itch";
-    private static final String ARTW_FRAME = "artw";
-    private static final String ITEM_FRAME = "item";
+    static final String ITCH_FRAME = "itch";
+    static final String ARTW_FRAME = "artw";
+    static final String ITEM_FRAME = "item";
     private static final int ITUNES_9 = 208;
     private static final int ITUNES_OLD = 216;
+    // Bytes following an item frame's size and name that hold everything parseItemHeader() needs.
+    static final int ITEM_HEADER_SIZE = 60;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
 
     private boolean startedReading = false;
-    private InputStream input;
+    private final ITCInput input;
+    // Frame and item headers are read into this array rather than a new one each time.
+    private final byte[] scratch = new byte[ITEM_HEADER_SIZE];
+    private final ByteBuffer scratchBuffer = ByteBuffer.wrap(scratch);
+    private byte[] copyBuffer;
+    private ITCMetricsListener listener = ITCMetricsListener.NONE;
+    // Frames parsed since the last image, for the ReadImage flight recorder event.
+    private int framesParsed = 0;
 
     /**
      * Constructs a new {@link ITCImageReader} that will read from the supplied {@link InputStream}.
@@ -52,13 +72,54 @@ public class ITCImageReader implements Closeable {
         if (stream == null) {
             throw new IllegalArgumentException("Stream cannot be null");
         }
-        // Wrap the supplied InputStream with something that supports mark if it does not already support mark. We'll
-        // need that functionality later on.
-        if (!stream.markSupported()) {
-            stream = new BufferedInputStream(stream);
+
+        input = new StreamITCInput(stream);
+    }
+
+    /**
+     * Constructs a new {@link ITCImageReader} that will read from the supplied {@link InputStream}, holding image data
+     * in arrays leased from a {@link BufferPool}. Call {@link ITCImage#release()} on each returned image once it is no
+     * longer needed to give its array back to the pool.
+     *
+     * @param stream A stream of the contents of an iTunes .itc file.
+     * @param pool The pool from which arrays for image data are leased.
+     */
+    public ITCImageReader (InputStream stream, BufferPool pool) {
+        if (stream == null) {
+            throw new IllegalArgumentException("Stream cannot be null");
+        }
+        if (pool == null) {
+            throw new IllegalArgumentException("Pool cannot be null");
         }
 
-        input = stream;
+        input = new StreamITCInput(stream, pool);
+    }
+
+    /**
+     * Constructs a new {@link ITCImageReader} that will read from an already prepared {@link ITCInput}. Used by
+     * subclasses that read from something other than a plain {@link InputStream}.
+     *
+     * @param input The input containing the contents of an iTunes .itc file.
+     */
+    ITCImageReader (ITCInput input) {
+        this.input = input;
+    }
+
+    /**
+     * Sets the listener that is told about the frames parsed and the bytes read by this reader.
+     *
+     * @param listener The listener to report to, or null to stop reporting.
+     */
+    public void setMetricsListener (ITCMetricsListener listener) {
+        this.listener = listener == null ? ITCMetricsListener.NONE : listener;
+    }
+
+    /**
+     * Hashes each image's data as it is read, for readers whose input copies the data into memory, so that
+     * {@link ITCDeduplicator} doesn't have to make a second pass over it.
+     */
+    void setHashingPayloads (boolean hashing) {
+        input.setHashing(hashing);
     }
 
     /**
@@ -71,20 +132,27 @@ public class ITCImageReader implements Closeable {
     public ITCImage readImage () throws IOException {
         startedReading = true;
 
-        while (true) {
-            // Read a frame, if there still are some.
-            Frame frame = readFrame();
-            if (frame == null) {
-                return null;
-            }
+        Object event = FlightRecorderEvents.beginReadImage();
+        framesParsed = 0;
+        ITCEntry entry = readEntry();
+        if (entry == null) {
+            return null;
+        }
 
-            // Try to extract an image from the frame, if it is an image frame. Otherwise continue and get the next
-            // frame.
-            ITCImage nextImage = handleFrame(frame);
-            if (nextImage != null) {
-                return nextImage;
-            }
+        Payload payload = input.readPayload(entry.getLength());
+        if (input.copiesPayloads()) {
+            listener.bytesRead(entry.getLength());
+        } else {
+            listener.bytesSkipped(entry.getLength());
+        }
+        if (input.allocatesPayloads()) {
+            listener.payloadAllocated(entry.getLength());
         }
+
+        FlightRecorderEvents.commitReadImage(event, input.getSource(), framesParsed, entry);
+
+        // Create an appropriate image instance from the format specified in the frame.
+        return entry.getFormat().newImage(entry.getWidth(), entry.getHeight(), payload);
     }
 
     /**
@@ -110,20 +178,174 @@ public class ITCImageReader implements Closeable {
         return images;
     }
 
+    /**
+     * Reads the next image from the .itc stream, writing its raw data straight to the supplied {@link OutputStream}
+     * rather than returning it. The data is copied through a small fixed size buffer, so the image is never held in
+     * memory in its entirety. {@code null} will be returned if the stream has reached the end and no more images have
+     * been found.
+     *
+     * <p>
+     *  For JPEG and PNG images the raw data is a complete image file. ARGB data is written as is, without the conversion
+     *  performed by {@link ARGBImage#writeToStream(OutputStream)}.
+     * </p>
+     *
+     * @param output The stream to which the image's raw data will be written.
+     * @return An entry describing the image that was written, or null if the stream does not contain any more images.
+     * @throws IOException If the underlying stream encounters an IOException.
+     */
+    public ITCEntry readPayloadTo (OutputStream output) throws IOException {
+        startedReading = true;
+
+        ITCEntry entry = readEntry();
+        if (entry == null) {
+            return null;
+        }
+
+        if (copyBuffer == null) {
+            copyBuffer = new byte[COPY_BUFFER_SIZE];
+        }
+        int remaining = entry.getLength();
+        while (remaining > 0) {
+            int read = input.read(copyBuffer, 0, Math.min(remaining, copyBuffer.length));
+            if (read <= 0) {
+                throw new IOException(String.format("Expected to read %d bytes but instead got %d", entry.getLength(),
+                    entry.getLength() - remaining));
+            }
+            listener.bytesRead(read);
+            output.write(copyBuffer, 0, read);
+            remaining -= read;
+        }
+
+        return entry;
+    }
+
+    /**
+     * Reads the stream fully, returning a table of contents of the images within it without reading any image data.
+     * Image payloads are skipped over, which for seekable inputs (files and memory mappings) means they are never read
+     * at all. Like {@link #readAll()} this method can only be called once and must be called prior to any calls to
+     * {@link #readImage()}.
+     *
+     * @return An entry for each image contained within the stream, or an empty {@link List} if the stream contained
+     * zero images.
+     * @throws IOException If the underlying stream encounters an IOException.
+     * @throws IllegaStateException If the stream has already been read from.
+     */
+    public List<ITCEntry> index () throws IOException {
+        if (startedReading) {
+            throw new IllegalStateException("Cannot perform index() after readImage() has been called.");
+        }
+        startedReading = true;
+
+        List<ITCEntry> entries = new ArrayList<ITCEntry>(3);
+        ITCEntry entry = readEntry();
+        while (entry != null) {
+            skip(entry.getLength());
+            entries.add(entry);
+            entry = readEntry();
+        }
+
+        return entries;
+    }
+
+    /**
+     * Returns the images contained within the stream as a {@link Stream}. Like {@link #readAll()} this method can only
+     * be called once and must be called prior to any calls to {@link #readImage()}, and the reader must be left open
+     * until the stream has been consumed.
+     *
+     * <p>
+     *  For seekable inputs, such as those of {@link MappedITCImageReader} and {@link LazyITCImageReader}, the frame
+     *  headers are indexed up front and the stream is sized and splits on item boundaries, so a
+     *  {@link Stream#parallel() parallel} stream processes images concurrently. Otherwise images are read one at a
+     *  time as the stream is consumed and are never all held in memory at once.
+     * </p>
+     *
+     * <p>
+     *  An {@link IOException} encountered while the stream is being consumed is rethrown as an
+     *  {@link UncheckedIOException}.
+     * </p>
+     *
+     * @return A stream of all images contained within the .itc stream.
+     * @throws IOException If indexing a seekable input encounters an IOException.
+     * @throws IllegaStateException If the stream has already been read from.
+     */
+    public Stream<ITCImage> stream () throws IOException {
+        if (startedReading) {
+            throw new IllegalStateException("Cannot perform stream() after readImage() has been called.");
+        }
+
+        if (input.isSeekable()) {
+            List<ITCEntry> entries = index();
+            return StreamSupport.stream(new EntrySpliterator(entries, 0, entries.size()), false);
+        }
+
+        startedReading = true;
+        Iterator<ITCImage> images = new Iterator<ITCImage>() {
+            private ITCImage next;
+
+            @Override
+            public boolean hasNext () {
+                if (next == null) {
+                    try {
+                        next = readImage();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public ITCImage next () {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                ITCImage image = next;
+                next = null;
+                return image;
+            }
+        };
+        return StreamSupport.stream(
+            Spliterators.spliteratorUnknownSize(images, Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Reads frames until the next item frame is found, leaving the input positioned at the start of its payload.
+     */
+    private ITCEntry readEntry () throws IOException {
+        while (true) {
+            // Read a frame, if there still are some.
+            Frame frame = readFrame();
+            if (frame == null) {
+                return null;
+            }
+
+            // Try to extract an image entry from the frame, if it is an image frame. Otherwise continue and get the
+            // next frame.
+            ITCEntry entry = handleFrame(frame);
+            if (entry != null) {
+                return entry;
+            }
+        }
+    }
+
     private Frame readFrame () throws IOException {
-        byte[] data = new byte[8];
-        int read = input.read(data);
-        if (read < data.length) {
+        int read = input.read(scratch, 0, 8);
+        if (read > 0) {
+            listener.bytesRead(read);
+        }
+        if (read < 8) {
             return null;
         }
 
-        long size = readUnsignedInt(data, 0);
-        String name = new String(data, 4, 4);
+        long size = readUnsignedInt(scratch, 0);
+        String name = new String(scratch, 4, 4);
 
         return new Frame(size, name);
     }
 
-    private ITCImage handleFrame (Frame frame) throws IOException {
+    private ITCEntry handleFrame (Frame frame) throws IOException {
+        framesParsed++;
+        listener.frameParsed(frame.name, frame.size);
         // Attempt to find an image within the next frame.
         if (ITCH_FRAME.equals(frame.name)) {
             return parseItch(frame);
@@ -136,64 +358,99 @@ public class ITCImageReader implements Closeable {
         }
     }
 
-    private ITCImage parseItch (Frame frame) throws IOException {
-        input.skip(16);
+    private ITCEntry parseItch (Frame frame) throws IOException {
+        skip(16);
 
-        String subframeName = new String(readBytes(4, true));
+        String subframeName = new String(readBytes(4), 0, 4);
         // Return the result of handling the subframe, just in case it is an image.
         return handleFrame(new Frame(frame.size, subframeName));
     }
 
-    private ITCImage parseArtw (Frame frame) throws IOException {
+    private ITCEntry parseArtw (Frame frame) throws IOException {
         // This section contains no data; assumed obsolete section per itc.py
-        input.skip(256);
+        skip(256);
 
         return null;
     }
 
-    private ITCImage parseItem (Frame frame) throws IOException {
-        // Mark current position the offset field is relative to current position.
-        input.mark(Integer.MAX_VALUE);
-        long offset = readUnsignedInt();
+    private ITCEntry parseItem (Frame frame) throws IOException {
+        long start = System.nanoTime();
+        long frameStart = input.position() - 8;
+        readBytes(ITEM_HEADER_SIZE);
+        ((Buffer)scratchBuffer).clear();
+        ITCEntry entry = parseItemHeader(scratchBuffer, frameStart, frame.size);
+
+        // Skip whatever is left of the header to get to the image data. The header is never read twice, so the input
+        // doesn't need to buffer the image data the way mark()/reset() would.
+        long remaining = entry.getOffset() - input.position();
+        if (remaining < 0) {
+            throw new UnexpectedFrameException("Item frame's image data overlaps its header.", frame);
+        }
+        skip(remaining);
+
+        listener.itemParsed(entry, System.nanoTime() - start);
+        return entry;
+    }
+
+    /**
+     * Decodes the header of an item frame.
+     *
+     * @param header At least {@link #ITEM_HEADER_SIZE} bytes, starting immediately after the frame's size and name.
+     * @param frameStart The position of the start of the frame (its size field) within the .itc stream.
+     * @param frameSize The size of the frame, including its size and name.
+     * @return An entry describing the image held by the frame.
+     */
+    static ITCEntry parseItemHeader (ByteBuffer header, long frameStart, long frameSize) {
+        long offset = header.getInt() & 0xFFFFFFFFL;
 
         // Skip the info preamble, we aren't going to use it.
         if (offset == ITUNES_9) {
-            input.skip(16);
+            skip(header, 16);
         } else if (offset == ITUNES_OLD) {
-            input.skip(20);
+            skip(header, 20);
         }
 
         // Skip library, track, and method fields
-        input.skip(8 + 8 + 4);
+        skip(header, 8 + 8 + 4);
 
-        byte[] formatBytes = readBytes(4, true);
+        byte[] formatBytes = new byte[4];
+        header.get(formatBytes);
         ITCImage.Format format = ITCImage.Format.valueOf(formatBytes);
 
-        input.skip(4);
-        long width = readUnsignedInt(), height = readUnsignedInt();
+        skip(header, 4);
+        long width = header.getInt() & 0xFFFFFFFFL, height = header.getInt() & 0xFFFFFFFFL;
 
-        // Restore position and skip to the image data.
-        input.reset();
         // Offset is relative to the start of the frame (including size and name).
-        input.skip(offset - 8);
+        long size = frameSize - offset;
 
-        long size = frame.size - offset;
+        return new ITCEntry(frameStart + offset, (int)size, format, width, height);
+    }
 
-        // Create an appropriate image instance from the format specified in the frame.
-        return format.newImage(width, height, readBytes((int)size, true));
+    private static void skip (ByteBuffer buffer, int count) {
+        ((Buffer)buffer).position(buffer.position() + count);
     }
 
-    private byte[] readBytes (int number, boolean exact) throws IOException {
-        byte[] data = new byte[number];
-        int read = input.read(data);
-        if (read != number && exact) {
-            throw new IOException(String.format("Expected to read %d bytes but instead got %d", number, read));
-        }
-        return data;
+    /**
+     * Skips over bytes of the input, reporting how many were actually skipped.
+     */
+    private void skip (long count) throws IOException {
+        long position = input.position();
+        input.skip(count);
+        listener.bytesSkipped(input.position() - position);
     }
 
-    private long readUnsignedInt () throws IOException {
-        return readUnsignedInt(readBytes(4, true), 0);
+    /**
+     * Reads exactly {@code number} bytes into the start of the scratch array, which is returned for convenience.
+     */
+    private byte[] readBytes (int number) throws IOException {
+        int read = input.read(scratch, 0, number);
+        if (read > 0) {
+            listener.bytesRead(read);
+        }
+        if (read != number) {
+            throw new IOException(String.format("Expected to read %d bytes but instead got %d", number, read));
+        }
+        return scratch;
     }
 
     private long readUnsignedInt (byte[] bytes, int offset) {
@@ -212,14 +469,67 @@ public class ITCImageReader implements Closeable {
         input.close();
     }
 
+    /**
+     * A {@link Spliterator} over a range of indexed entries of a seekable input, splitting the range in half.
+     */
+    private class EntrySpliterator implements Spliterator<ITCImage> {
+        private final List<ITCEntry> entries;
+        private int index;
+        private final int end;
+
+        private EntrySpliterator (List<ITCEntry> entries, int index, int end) {
+            this.entries = entries;
+            this.index = index;
+            this.end = end;
+        }
+
+        @Override
+        public boolean tryAdvance (Consumer<? super ITCImage> action) {
+            if (index >= end) {
+                return false;
+            }
+
+            ITCEntry entry = entries.get(index++);
+            try {
+                action.accept(entry.getFormat().newImage(entry.getWidth(), entry.getHeight(),
+                    input.payloadAt(entry.getOffset(), entry.getLength())));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return true;
+        }
+
+        @Override
+        public Spliterator<ITCImage> trySplit () {
+            int middle = (index + end) >>> 1;
+            if (middle <= index) {
+                return null;
+            }
+
+            Spliterator<ITCImage> prefix = new EntrySpliterator(entries, index, middle);
+            index = middle;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize () {
+            return end - index;
+        }
+
+        @Override
+        public int characteristics () {
+            return ORDERED | SIZED | SUBSIZED | NONNULL | IMMUTABLE;
+        }
+    }
+
     /**
      * A simple class to encapsulate frame information.
      */
-    private static class Frame {
+    static class Frame {
         private long size;
         private String name;
 
-        private Frame (long size, String name) {
+        Frame (long size, String name) {
             this.size = size;
             this.name = name;
         }
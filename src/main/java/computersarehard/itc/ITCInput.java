@@ -0,0 +1,106 @@
+/*
+  Copyright 2013 Peter Rebholz
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package computersarehard.itc;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * The source of bytes that an {@link ITCImageReader} parses frames from.
+ *
+ * <p>
+ *  Implementations exist for plain {@link java.io.InputStream}s, memory mapped files and lazily read files. The reader
+ *  only ever moves forward through the input.
+ * </p>
+ */
+abstract class ITCInput implements Closeable {
+    /**
+     * Reads up to {@code length} bytes into the supplied array, only returning early if the end of the input is
+     * reached.
+     *
+     * @return The number of bytes read, or -1 if the end of the input had already been reached.
+     */
+    abstract int read (byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * Skips exactly {@code count} bytes, or up to the end of the input if fewer than {@code count} remain.
+     */
+    abstract void skip (long count) throws IOException;
+
+    /**
+     * @return The number of bytes between the start of the input and the current position.
+     */
+    abstract long position ();
+
+    /**
+     * Reads the next {@code size} bytes of image data. Implementations are free to return a view of their own storage
+     * instead of a copy, or to defer reading the data until it is needed.
+     *
+     * @param size The number of bytes in the payload.
+     * @return A payload of exactly {@code size} bytes.
+     * @throws IOException If the input ends before {@code size} bytes could be read.
+     */
+    abstract Payload readPayload (int size) throws IOException;
+
+    /**
+     * @return The path of the file being read, or null if the input isn't a file.
+     */
+    String getSource () {
+        return null;
+    }
+
+    /**
+     * @return True if {@link #readPayload(int)} reads the image data into memory, rather than leaving it in the file.
+     */
+    boolean copiesPayloads () {
+        return false;
+    }
+
+    /**
+     * @return True if {@link #readPayload(int)} allocates a new array for the image data.
+     */
+    boolean allocatesPayloads () {
+        return false;
+    }
+
+    /**
+     * Asks the input to hash payloads with {@link XXHash64} as it reads them, while their bytes are still in the CPU's
+     * cache, and to record the result with {@link Payload#withHash(long)}. Inputs that don't read payloads into memory
+     * ignore this; their payloads are hashed when the hash is first needed.
+     */
+    void setHashing (boolean hashing) {
+    }
+
+    /**
+     * @return True if {@link #payloadAt(long, int)} is supported.
+     */
+    boolean isSeekable () {
+        return false;
+    }
+
+    /**
+     * Returns the image data at an arbitrary position without moving the current position. Only supported by
+     * seekable inputs, for which it may be called concurrently from multiple threads.
+     *
+     * @param offset The offset of the payload from the start of the input.
+     * @param size The number of bytes in the payload.
+     * @return A payload of exactly {@code size} bytes.
+     * @throws IOException If the payload lies beyond the end of the input.
+     */
+    Payload payloadAt (long offset, int size) throws IOException {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " is not seekable");
+    }
+}
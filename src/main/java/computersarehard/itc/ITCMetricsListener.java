@@ -0,0 +1,106 @@
+/*
+  Copyright 2013 Peter Rebholz
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package computersarehard.itc;
+
+/**
+ * Receives measurements from the parsing and encoding hot paths, for example to feed a metrics library or to tell
+ * whether a slow node is spending its time on I/O or on conversion.
+ *
+ * <p>
+ *  Every method has an empty default implementation, so a listener only needs to override the measurements it is
+ *  interested in. Listeners are called synchronously on the thread doing the work and should be fast. A listener
+ *  passed to more than one reader or encoder, or used with a parallel {@link ITCImageReader#stream()}, is called from
+ *  several threads at once and must be thread safe.
+ * </p>
+ *
+ * <pre>
+ *     ITCImageReader reader = new ITCImageReader(stream);
+ *     reader.setMetricsListener(new ITCMetricsListener() {
+ *         public void bytesRead (long count) {
+ *             bytesRead.add(count);
+ *         }
+ *     });
+ *     image.writeToStream(output, options, listener);
+ * </pre>
+ */
+public interface ITCMetricsListener {
+    /**
+     * A listener that ignores everything, used when no listener has been set.
+     */
+    ITCMetricsListener NONE = new ITCMetricsListener() {};
+
+    /**
+     * Called for each frame or subframe header parsed by an {@link ITCImageReader}.
+     *
+     * @param type The frame's four character type, such as {@code itch}, {@code artw} or {@code item}.
+     * @param size The size of the frame in bytes, as recorded in its header.
+     */
+    default void frameParsed (String type, long size) {
+    }
+
+    /**
+     * Called when an {@link ITCImageReader} reads bytes from its input: frame headers, and image data when reading
+     * from an {@link java.io.InputStream}.
+     *
+     * @param count The number of bytes read.
+     */
+    default void bytesRead (long count) {
+    }
+
+    /**
+     * Called when an {@link ITCImageReader} moves past bytes without reading them, such as unused parts of headers,
+     * image data skipped by {@link ITCImageReader#index()}, and image data left in the file by a
+     * {@link MappedITCImageReader} or {@link LazyITCImageReader}.
+     *
+     * @param count The number of bytes skipped.
+     */
+    default void bytesSkipped (long count) {
+    }
+
+    /**
+     * Called when an {@link ITCImageReader} allocates a new array on the heap to hold an image's data. Readers that
+     * map the file, load data lazily or lease arrays from a {@link BufferPool} don't allocate.
+     *
+     * @param size The size of the array in bytes.
+     */
+    default void payloadAllocated (int size) {
+    }
+
+    /**
+     * Called once an item frame's header has been parsed.
+     *
+     * @param entry The image described by the frame.
+     * @param nanos The time taken to read and parse the header, in nanoseconds.
+     */
+    default void itemParsed (ITCEntry entry, long nanos) {
+    }
+
+    /**
+     * Called once an {@link ARGBImage} has been encoded as a PNG. When compressing in parallel the times are summed
+     * across all of the threads involved.
+     *
+     * @param width The width of the image in pixels.
+     * @param height The height of the image in pixels.
+     * @param conversionNanos The time spent converting pixels from ARGB and filtering rows, in nanoseconds.
+     * @param deflateNanos The time spent compressing, in nanoseconds.
+     * @param crcNanos The time spent computing chunk CRCs, in nanoseconds.
+     * @param outputBytes The size of the PNG file written.
+     */
+    default void imageEncoded (long width, long height, long conversionNanos, long deflateNanos, long crcNanos,
+        long outputBytes)
+    {
+    }
+}
@@ -0,0 +1,54 @@
+/*
+  Copyright 2013 Peter Rebholz
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package computersarehard.itc;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * An {@link ITCImageReader} that only reads the frame headers of an .itc file. The data of each returned image is read
+ * from the file the first time it is requested through {@link ITCImage#getData()}, {@link ITCImage#getBuffer()} or
+ * {@link ITCImage#writeToStream(java.io.OutputStream)}.
+ *
+ * <p>
+ *  By default loaded data is kept for the lifetime of the image. Alternatively the data can be softly referenced, in
+ *  which case the garbage collector is free to drop it when memory runs low and it is read from the file again the
+ *  next time it is needed. Either way the file must not change or move while the images are in use.
+ * </p>
+ */
+public class LazyITCImageReader extends ITCImageReader {
+    /**
+     * Constructs a new {@link LazyITCImageReader} that will read from the supplied file and keep image data once it
+     * has been loaded.
+     *
+     * @param file An iTunes .itc file.
+     * @throws IOException If the file could not be opened.
+     */
+    public LazyITCImageReader (File file) throws IOException {
+        this(file, false);
+    }
+
+    /**
+     * Constructs a new {@link LazyITCImageReader} that will read from the supplied file.
+     *
+     * @param file An iTunes .itc file.
+     * @param softlyReferenced If true, loaded image data may be dropped under memory pressure and read again later.
+     * @throws IOException If the file could not be opened.
+     */
+    public LazyITCImageReader (File file, boolean softlyReferenced) throws IOException {
+        super(new LazyITCInput(file, softlyReferenced));
+    }
+}
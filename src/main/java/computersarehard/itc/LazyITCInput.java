@@ -0,0 +1,78 @@
+/*
+  Copyright 2013 Peter Rebholz
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package computersarehard.itc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * An {@link ITCInput} that reads frame headers from a file but skips over image data, returning payloads that load
+ * themselves from the file on demand.
+ */
+final class LazyITCInput extends ITCInput {
+    private final File file;
+    private final boolean soft;
+    private final StreamITCInput input;
+
+    LazyITCInput (File file, boolean soft) throws IOException {
+        this.file = file;
+        this.soft = soft;
+        this.input = new StreamITCInput(new FileInputStream(file));
+    }
+
+    @Override
+    int read (byte[] buffer, int offset, int length) throws IOException {
+        return input.read(buffer, offset, length);
+    }
+
+    @Override
+    void skip (long count) throws IOException {
+        input.skip(count);
+    }
+
+    @Override
+    long position () {
+        return input.position();
+    }
+
+    @Override
+    Payload readPayload (int size) throws IOException {
+        Payload payload = Payload.lazy(file, input.position(), size, soft);
+        input.skip(size);
+        return payload;
+    }
+
+    @Override
+    String getSource () {
+        return file.getPath();
+    }
+
+    @Override
+    boolean isSeekable () {
+        return true;
+    }
+
+    @Override
+    Payload payloadAt (long offset, int size) {
+        return Payload.lazy(file, offset, size, soft);
+    }
+
+    @Override
+    public void close () throws IOException {
+        input.close();
+    }
+}
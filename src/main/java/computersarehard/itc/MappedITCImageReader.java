@@ -0,0 +1,41 @@
+/*
+  Copyright 2013 Peter Rebholz
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package computersarehard.itc;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * An {@link ITCImageReader} that memory maps an .itc file instead of reading it through an
+ * {@link java.io.InputStream}.
+ *
+ * <p>
+ *  Images returned by this reader share their data with the mapping: {@link ITCImage#getBuffer()} is a slice of the
+ *  mapped file and nothing is copied onto the heap unless {@link ITCImage#getData()} is called. The mapping, and with
+ *  it the image data, stays valid after the reader has been closed.
+ * </p>
+ */
+public class MappedITCImageReader extends ITCImageReader {
+    /**
+     * Constructs a new {@link MappedITCImageReader} that will read from the supplied file.
+     *
+     * @param file An iTunes .itc file.
+     * @throws IOException If the file could not be opened or mapped.
+     */
+    public MappedITCImageReader (File file) throws IOException {
+        super(MappedITCInput.open(file));
+    }
+}
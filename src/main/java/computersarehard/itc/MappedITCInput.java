@@ -0,0 +1,116 @@
+/*
+  Copyright 2013 Peter Rebholz
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package computersarehard.itc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An {@link ITCInput} backed by a read only memory mapping of an entire .itc file. Payloads are returned as slices of
+ * the mapping, so no image data is copied onto the heap.
+ */
+final class MappedITCInput extends ITCInput {
+    private final File file;
+    private final MappedByteBuffer buffer;
+
+    private MappedITCInput (File file, MappedByteBuffer buffer) {
+        this.file = file;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Maps the supplied file into memory. The underlying channel is closed straight away; the mapping stays valid
+     * until it is garbage collected.
+     */
+    static MappedITCInput open (File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(String.format("%s is too large to map (%d bytes)", file, size));
+            }
+            return new MappedITCInput(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Override
+    int read (byte[] dest, int offset, int length) {
+        if (length > 0 && !buffer.hasRemaining()) {
+            return -1;
+        }
+        int count = Math.min(length, buffer.remaining());
+        buffer.get(dest, offset, count);
+        return count;
+    }
+
+    @Override
+    void skip (long count) {
+        ((Buffer)buffer).position((int)Math.min(buffer.limit(), buffer.position() + count));
+    }
+
+    @Override
+    long position () {
+        return buffer.position();
+    }
+
+    @Override
+    Payload readPayload (int size) throws IOException {
+        if (size > buffer.remaining()) {
+            throw new IOException(String.format("Expected to read %d bytes but instead got %d", size,
+                buffer.remaining()));
+        }
+        long offset = buffer.position();
+        ByteBuffer payload = buffer.slice();
+        ((Buffer)payload).limit(size);
+        ((Buffer)buffer).position(buffer.position() + size);
+        return Payload.mapped(payload, file, offset);
+    }
+
+    @Override
+    String getSource () {
+        return file.getPath();
+    }
+
+    @Override
+    boolean isSeekable () {
+        return true;
+    }
+
+    @Override
+    Payload payloadAt (long offset, int size) throws IOException {
+        if (offset + size > buffer.limit()) {
+            throw new IOException(String.format("Expected to read %d bytes but instead got %d", size,
+                Math.max(0, buffer.limit() - offset)));
+        }
+        ByteBuffer payload = buffer.duplicate();
+        ((Buffer)payload).position((int)offset);
+        ((Buffer)payload).limit((int)offset + size);
+        return Payload.mapped(payload, file, offset);
+    }
+
+    @Override
+    public void close () {
+        // Nothing to do, the channel was closed when the file was mapped.
+    }
+}
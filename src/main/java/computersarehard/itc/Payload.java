@@ -0,0 +1,338 @@
+/*
+  Copyright 2013 Peter Rebholz
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package computersarehard.itc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.SoftReference;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The raw data of an {@link ITCImage}. Payloads either hold their bytes directly or know how to fetch them from the
+ * .itc file they were found in.
+ */
+abstract class Payload {
+    private boolean hashed;
+    private long hash;
+
+    /**
+     * @return The size of the payload in bytes. Never requires the payload to be loaded.
+     */
+    abstract int length ();
+
+    /**
+     * Returns the payload's bytes, loading them first if necessary. The returned buffer is shared and must be treated
+     * as read only; its position is zero and its limit is {@link #length()}.
+     *
+     * @throws IOException If the payload had to be loaded and reading it failed.
+     */
+    abstract ByteBuffer buffer () throws IOException;
+
+    /**
+     * Writes the payload's bytes to a channel. Payloads that know which file they came from do so with
+     * {@link FileChannel#transferTo(long, long, WritableByteChannel)}, letting the operating system copy the bytes
+     * directly from the file to the target where it is able to.
+     *
+     * @param target A blocking channel to write to.
+     * @throws IOException If reading the payload or writing to the channel failed.
+     */
+    void transferTo (WritableByteChannel target) throws IOException {
+        ByteBuffer data = buffer().duplicate();
+        while (data.hasRemaining()) {
+            target.write(data);
+        }
+    }
+
+    /**
+     * Returns the XXH64 hash (with a seed of zero) of the payload's bytes. The hash is computed the first time it is
+     * needed, unless it was already computed as the bytes were read.
+     *
+     * @throws IOException If the payload had to be read and reading it failed.
+     */
+    final synchronized long hash () throws IOException {
+        if (!hashed) {
+            hash = computeHash();
+            hashed = true;
+        }
+        return hash;
+    }
+
+    /**
+     * Records the hash of the payload's bytes, computed by whoever read them.
+     *
+     * @return This payload.
+     */
+    final synchronized Payload withHash (long hash) {
+        this.hash = hash;
+        hashed = true;
+        return this;
+    }
+
+    long computeHash () throws IOException {
+        return XXHash64.hash(buffer(), 0);
+    }
+
+    /**
+     * Gives any resources held by the payload back. The payload must not be used afterwards.
+     */
+    void release () {
+    }
+
+    /**
+     * Creates a payload that holds the remaining bytes of the supplied buffer.
+     */
+    static Payload of (ByteBuffer data) {
+        return new Loaded(data.slice());
+    }
+
+    /**
+     * Creates a payload backed by a slice of a memory mapped file, which is transferred to channels straight from the
+     * file.
+     *
+     * @param data The slice of the mapping holding the payload.
+     * @param file The mapped file.
+     * @param offset The offset of the payload from the start of the file.
+     */
+    static Payload mapped (ByteBuffer data, File file, long offset) {
+        return new Mapped(data.slice(), file, offset);
+    }
+
+    /**
+     * Creates a payload that is read from a file the first time it is needed.
+     *
+     * @param file The file containing the payload.
+     * @param offset The offset of the payload from the start of the file.
+     * @param length The length of the payload in bytes.
+     * @param soft If true the loaded bytes are only softly referenced, and are dropped (to be read again later) when the
+     * garbage collector needs the memory. Otherwise they are kept once loaded.
+     */
+    static Payload lazy (File file, long offset, int length, boolean soft) {
+        return new Lazy(file, offset, length, soft);
+    }
+
+    /**
+     * Creates a payload held in an array leased from a {@link BufferPool}, which is returned to the pool on release.
+     *
+     * @param data The leased array.
+     * @param length The number of bytes at the start of the array that hold the payload.
+     * @param pool The pool the array was leased from.
+     */
+    static Payload pooled (byte[] data, int length, BufferPool pool) {
+        return new Pooled(data, length, pool);
+    }
+
+    private static final class Loaded extends Payload {
+        private final ByteBuffer data;
+
+        private Loaded (ByteBuffer data) {
+            this.data = data;
+        }
+
+        @Override
+        int length () {
+            return data.remaining();
+        }
+
+        @Override
+        ByteBuffer buffer () {
+            return data;
+        }
+    }
+
+    private static final class Mapped extends Payload {
+        private final ByteBuffer data;
+        private final File file;
+        private final long offset;
+
+        private Mapped (ByteBuffer data, File file, long offset) {
+            this.data = data;
+            this.file = file;
+            this.offset = offset;
+        }
+
+        @Override
+        int length () {
+            return data.remaining();
+        }
+
+        @Override
+        ByteBuffer buffer () {
+            return data;
+        }
+
+        @Override
+        void transferTo (WritableByteChannel target) throws IOException {
+            transferFromFile(file, offset, data.remaining(), target);
+        }
+    }
+
+    private static final class Pooled extends Payload {
+        private final ByteBuffer data;
+        private final BufferPool pool;
+        private byte[] array;
+
+        private Pooled (byte[] array, int length, BufferPool pool) {
+            this.data = ByteBuffer.wrap(array, 0, length).slice();
+            this.pool = pool;
+            this.array = array;
+        }
+
+        @Override
+        int length () {
+            return data.remaining();
+        }
+
+        @Override
+        synchronized ByteBuffer buffer () {
+            if (array == null) {
+                throw new IllegalStateException("Image data has already been released");
+            }
+            return data;
+        }
+
+        @Override
+        synchronized void release () {
+            if (array != null) {
+                pool.release(array);
+                array = null;
+            }
+        }
+    }
+
+    private static final class Lazy extends Payload {
+        private final File file;
+        private final long offset;
+        private final int length;
+        private final boolean soft;
+        private ByteBuffer data;
+        private SoftReference<ByteBuffer> softData;
+
+        private Lazy (File file, long offset, int length, boolean soft) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+            this.soft = soft;
+        }
+
+        @Override
+        int length () {
+            return length;
+        }
+
+        @Override
+        synchronized ByteBuffer buffer () throws IOException {
+            ByteBuffer loaded = loaded();
+            if (loaded == null) {
+                loaded = load();
+                if (soft) {
+                    softData = new SoftReference<ByteBuffer>(loaded);
+                } else {
+                    data = loaded;
+                }
+            }
+            return loaded;
+        }
+
+        @Override
+        void transferTo (WritableByteChannel target) throws IOException {
+            // Only go back to the file if the bytes aren't already in memory.
+            if (loaded() != null) {
+                super.transferTo(target);
+            } else {
+                transferFromFile(file, offset, length, target);
+            }
+        }
+
+        @Override
+        long computeHash () throws IOException {
+            ByteBuffer loaded = loaded();
+            if (loaded != null) {
+                return XXHash64.hash(loaded, 0);
+            }
+
+            // Stream the bytes through the hash a chunk at a time rather than loading (and keeping) the whole payload.
+            XXHash64 hash = new XXHash64(0);
+            ByteBuffer chunk = ByteBuffer.allocate(Math.min(length, XXHash64.CHUNK_SIZE));
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                long hashed = 0;
+                while (hashed < length) {
+                    ((Buffer)chunk).clear();
+                    ((Buffer)chunk).limit((int)Math.min(chunk.capacity(), length - hashed));
+                    int read = channel.read(chunk, offset + hashed);
+                    if (read < 0) {
+                        throw new IOException(String.format("Expected to read %d bytes from %s but instead got %d",
+                            length, file, hashed));
+                    }
+                    ((Buffer)chunk).flip();
+                    hash.update(chunk);
+                    hashed += read;
+                }
+            } finally {
+                raf.close();
+            }
+            return hash.getValue();
+        }
+
+        private synchronized ByteBuffer loaded () {
+            return soft ? (softData == null ? null : softData.get()) : data;
+        }
+
+        private ByteBuffer load () throws IOException {
+            ByteBuffer loaded = ByteBuffer.allocate(length);
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = raf.getChannel();
+                while (loaded.hasRemaining()) {
+                    int read = channel.read(loaded, offset + loaded.position());
+                    if (read < 0) {
+                        throw new IOException(String.format("Expected to read %d bytes from %s but instead got %d",
+                            length, file, loaded.position()));
+                    }
+                }
+            } finally {
+                raf.close();
+            }
+            ((Buffer)loaded).flip();
+            return loaded;
+        }
+    }
+
+    private static void transferFromFile (File file, long offset, int length, WritableByteChannel target)
+        throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long transferred = 0;
+            while (transferred < length) {
+                long count = channel.transferTo(offset + transferred, length - transferred, target);
+                if (count <= 0 && offset + transferred >= channel.size()) {
+                    throw new IOException(String.format("Expected to read %d bytes from %s but instead got %d",
+                        length, file, transferred));
+                }
+                transferred += count;
+            }
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/*
+  Copyright 2013 Peter Rebholz
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package computersarehard.itc;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * The PNG color type an image is encoded with, and the conversion of ARGB pixels to it.
+ *
+ * <p>
+ *  {@link #analyze(ByteBuffer, int)} picks the smallest representation that loses nothing: grayscale when every pixel
+ *  is opaque and R=G=B, an 8 bit palette when there are no more than 256 distinct colors, grayscale with alpha when
+ *  R=G=B, RGB when every pixel is opaque, and otherwise RGBA.
+ * </p>
+ */
+final class PngColorMode {
+    static final byte GRAY = 0;
+    static final byte RGB = 2;
+    static final byte PALETTE = 3;
+    static final byte GRAY_ALPHA = 4;
+    static final byte RGBA = 6;
+
+    private static final int MAX_PALETTE_SIZE = 256;
+
+    /**
+     * Plain RGBA, used when color type reduction is disabled.
+     */
+    static final PngColorMode RGBA_MODE = new PngColorMode(RGBA, null);
+
+    private final byte colorType;
+    private final ColorTable palette;
+
+    private PngColorMode (byte colorType, ColorTable palette) {
+        this.colorType = colorType;
+        this.palette = palette;
+    }
+
+    /**
+     * Scans every pixel of an image and returns the smallest color mode able to represent it exactly.
+     *
+     * @param data The ARGB data, starting at position zero.
+     * @param pixels The number of pixels in the image.
+     */
+    static PngColorMode analyze (ByteBuffer data, int pixels) {
+        IntBuffer argb = data.duplicate().order(ByteOrder.BIG_ENDIAN).asIntBuffer();
+        int[] row = new int[Math.min(pixels, 4096)];
+        boolean opaque = true;
+        boolean gray = true;
+        ColorTable colors = new ColorTable();
+
+        for (int remaining = pixels; remaining > 0; remaining -= row.length) {
+            int count = Math.min(remaining, row.length);
+            argb.get(row, 0, count);
+            for (int i = 0; i < count; i++) {
+                int pixel = row[i];
+                opaque &= (pixel >>> 24) == 0xFF;
+                gray &= ((pixel >>> 16) & 0xFF) == (pixel & 0xFF) && ((pixel >>> 8) & 0xFF) == (pixel & 0xFF);
+                if (colors != null && colors.add(pixel) && colors.size() > MAX_PALETTE_SIZE) {
+                    colors = null;
+                }
+            }
+            if (!opaque && !gray && colors == null) {
+                return RGBA_MODE;
+            }
+        }
+
+        if (gray && opaque) {
+            return new PngColorMode(GRAY, null);
+        } else if (colors != null) {
+            return new PngColorMode(PALETTE, colors);
+        } else if (gray) {
+            return new PngColorMode(GRAY_ALPHA, null);
+        } else if (opaque) {
+            return new PngColorMode(RGB, null);
+        }
+        return RGBA_MODE;
+    }
+
+    byte getColorType () {
+        return colorType;
+    }
+
+    int getBytesPerPixel () {
+        switch (colorType) {
+            case GRAY:
+            case PALETTE:
+                return 1;
+            case GRAY_ALPHA:
+                return 2;
+            case RGB:
+                return 3;
+            default:
+                return 4;
+        }
+    }
+
+    /**
+     * @return The contents of the PLTE chunk, or null if the mode doesn't use a palette.
+     */
+    byte[] paletteChunk () {
+        if (palette == null) {
+            return null;
+        }
+        int[] colors = palette.colors();
+        byte[] chunk = new byte[colors.length * 3];
+        for (int i = 0; i < colors.length; i++) {
+            chunk[i * 3] = (byte)(colors[i] >>> 16);
+            chunk[i * 3 + 1] = (byte)(colors[i] >>> 8);
+            chunk[i * 3 + 2] = (byte)colors[i];
+        }
+        return chunk;
+    }
+
+    /**
+     * @return The contents of the tRNS chunk giving each palette entry's alpha, or null if it isn't needed.
+     */
+    byte[] transparencyChunk () {
+        if (palette == null) {
+            return null;
+        }
+        int[] colors = palette.colors();
+        // Trailing opaque entries can be left out.
+        int length = colors.length;
+        while (length > 0 && (colors[length - 1] >>> 24) == 0xFF) {
+            length--;
+        }
+        if (length == 0) {
+            return null;
+        }
+        byte[] chunk = new byte[length];
+        for (int i = 0; i < length; i++) {
+            chunk[i] = (byte)(colors[i] >>> 24);
+        }
+        return chunk;
+    }
+
+    /**
+     * Converts a row of ARGB pixels to the mode's byte layout.
+     *
+     * @param pixels The row's 0xAARRGGBB values. May be overwritten.
+     * @param out Receives the converted row.
+     * @param outInts An int view of {@code out}, used for RGBA.
+     */
+    void convert (int[] pixels, byte[] out, IntBuffer outInts) {
+        switch (colorType) {
+            case GRAY:
+                for (int x = 0; x < pixels.length; x++) {
+                    out[x] = (byte)pixels[x];
+                }
+                break;
+            case PALETTE:
+                for (int x = 0; x < pixels.length; x++) {
+                    out[x] = (byte)palette.indexOf(pixels[x]);
+                }
+                break;
+            case GRAY_ALPHA:
+                for (int x = 0, i = 0; x < pixels.length; x++, i += 2) {
+                    out[i] = (byte)pixels[x];
+                    out[i + 1] = (byte)(pixels[x] >>> 24);
+                }
+                break;
+            case RGB:
+                for (int x = 0, i = 0; x < pixels.length; x++, i += 3) {
+                    out[i] = (byte)(pixels[x] >>> 16);
+                    out[i + 1] = (byte)(pixels[x] >>> 8);
+                    out[i + 2] = (byte)pixels[x];
+                }
+                break;
+            default:
+                // Rotating each 0xAARRGGBB value left by a byte gives 0xRRGGBBAA, written out in bulk.
+                for (int x = 0; x < pixels.length; x++) {
+                    pixels[x] = Integer.rotateLeft(pixels[x], 8);
+                }
+                ((Buffer)outInts).clear();
+                outInts.put(pixels);
+        }
+    }
+
+    /**
+     * A small open addressing hash table mapping colors to palette indexes in order of first appearance.
+     */
+    private static final class ColorTable {
+        private static final int CAPACITY = 1024;
+
+        private final int[] keys = new int[CAPACITY];
+        private final short[] indexes = new short[CAPACITY];
+        private final int[] colors = new int[MAX_PALETTE_SIZE + 1];
+        private int size = 0;
+
+        private ColorTable () {
+            Arrays.fill(indexes, (short)-1);
+        }
+
+        /**
+         * @return True if the color was not already in the table.
+         */
+        private boolean add (int color) {
+            int slot = slot(color);
+            if (indexes[slot] >= 0) {
+                return false;
+            }
+            keys[slot] = color;
+            indexes[slot] = (short)size;
+            if (size < colors.length) {
+                colors[size] = color;
+            }
+            size++;
+            return true;
+        }
+
+        private int indexOf (int color) {
+            return indexes[slot(color)];
+        }
+
+        private int size () {
+            return size;
+        }
+
+        private int[] colors () {
+            return Arrays.copyOf(colors, size);
+        }
+
+        private int slot (int color) {
+            int slot = (color * 0x9E3779B9) >>> 22;
+            while (indexes[slot] >= 0 && keys[slot] != color) {
+                slot = (slot + 1) & (CAPACITY - 1);
+            }
+            return slot;
+        }
+    }
+}
@@ -0,0 +1,685 @@
+/*
+  Copyright 2013 Peter Rebholz
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package computersarehard.itc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes ARGB images as PNG files, streaming each to the output as it goes.
+ *
+ * <p>
+ *  Pixels are converted one row at a time into a row buffer that is fed straight into a {@link Deflater}, and
+ *  compressed data is written out as an IDAT chunk each time the chunk buffer fills up. Memory use is bounded by a
+ *  single row plus one chunk regardless of the image size, and the start of the file reaches the output before the
+ *  whole image has been compressed.
+ * </p>
+ *
+ * <p>
+ *  When {@link PngOptions#getParallelism()} is above one the image is instead split into blocks of rows that are
+ *  filtered and compressed concurrently, in the same way as pigz: each block is raw deflate data primed with the last
+ *  32KB of the previous block as a dictionary and ended with a sync flush, so the blocks can simply be joined into a
+ *  single zlib stream whose Adler-32 is combined from the checksums of the blocks.
+ * </p>
+ *
+ * <p>
+ *  An encoder is a session for converting many images with the same {@link PngOptions}: its {@link Deflater}s, CRC
+ *  and buffers are reset and reused for each image rather than allocated again, and the native memory held by the
+ *  deflaters is only released when the encoder is {@link #close() closed}. Encoders are not thread safe, so a batch
+ *  conversion should use one encoder per thread:
+ * </p>
+ *
+ * <pre>
+ *     try (PngEncoder encoder = new PngEncoder(options)) {
+ *         for (ARGBImage image : images) {
+ *             encoder.encode(image, output);
+ *         }
+ *     }
+ * </pre>
+ *
+ * <p>
+ *  {@link ARGBImage#writeToStream(OutputStream, PngOptions)} encodes with a new encoder each time and closes it
+ *  straight away. Code running on a few long lived threads can instead share each thread's encoder through
+ *  {@link #forCurrentThread(PngOptions)}, and servers can lease encoders from a {@link PngEncoderPool}.
+ * </p>
+ */
+public final class PngEncoder implements Closeable {
+    private static final byte[] SIGNATURE = new byte[] {
+        (byte)0x89, (byte)0x50, (byte)0x4e, (byte)0x47, (byte)0x0d, (byte)0x0a, (byte)0x1a, (byte)0x0a
+    };
+    private static final byte[] IHDR = "IHDR".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] IDAT = "IDAT".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] IEND = "IEND".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PLTE = "PLTE".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TRNS = "tRNS".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] EMPTY = new byte[0];
+    private static final int BYTES_PER_PIXEL = 4;
+    // Uncompressed bytes per block when compressing in parallel, and the size of the deflate window.
+    private static final int BLOCK_SIZE = 128 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final int ADLER_BASE = 65521;
+    // The first column, first row, column step and row step of each of the seven Adam7 passes.
+    private static final int[][] ADAM7 = new int[][] {
+        {0, 0, 8, 8}, {4, 0, 8, 8}, {0, 4, 4, 8}, {2, 0, 4, 4}, {0, 2, 2, 4}, {1, 0, 2, 2}, {0, 1, 1, 2}
+    };
+
+    private static final ThreadLocal<PngEncoder> CURRENT = new ThreadLocal<PngEncoder>();
+
+    private final PngOptions options;
+    private final CRC32 crc32 = new CRC32();
+    private final byte[] intBuffer = new byte[4];
+    private final byte[] header = new byte[13];
+    private final byte[] chunk;
+    // Created on first use, then reset for each image.
+    private Deflater deflater;
+    // Raw deflaters for parallel blocks, taken and returned by the worker threads.
+    private final Queue<Deflater> blockDeflaters = new ConcurrentLinkedQueue<Deflater>();
+    private volatile boolean closed = false;
+    private final ITCMetricsListener listener;
+    private OutputStream output;
+    private int chunkLength;
+    // Measurements of the image being encoded, only taken when there is a listener to report them to.
+    private boolean timed;
+    private long conversionNanos;
+    private long deflateNanos;
+    private long crcNanos;
+    private long outputBytes;
+
+    /**
+     * @param options The settings to encode with.
+     */
+    public PngEncoder (PngOptions options) {
+        this(options, ITCMetricsListener.NONE);
+    }
+
+    /**
+     * @param options The settings to encode with.
+     * @param listener The listener told about each image encoded.
+     */
+    public PngEncoder (PngOptions options, ITCMetricsListener listener) {
+        if (options == null) {
+            throw new IllegalArgumentException("Options cannot be null");
+        }
+        this.options = options;
+        this.listener = listener == null ? ITCMetricsListener.NONE : listener;
+        this.chunk = new byte[options.getChunkSize()];
+    }
+
+    /**
+     * Returns the calling thread's encoder for the supplied options, replacing (and closing) its previous encoder if
+     * that used different options. Closing the encoder releases its native memory, and the next call creates another.
+     *
+     * <p>
+     *  The encoder is only closed when it is replaced, so its native memory is held until the thread ends and the
+     *  encoder is garbage collected. Only use this from a small number of long lived threads that encode with the same
+     *  options, never from short lived or virtual threads.
+     * </p>
+     *
+     * @param options The settings to encode with.
+     * @return The calling thread's encoder, which must not be shared with other threads.
+     */
+    public static PngEncoder forCurrentThread (PngOptions options) {
+        PngEncoder encoder = CURRENT.get();
+        if (encoder == null || encoder.closed || !encoder.options.equals(options)) {
+            if (encoder != null) {
+                encoder.close();
+            }
+            encoder = new PngEncoder(options);
+            CURRENT.set(encoder);
+        }
+        return encoder;
+    }
+
+    public PngOptions getOptions () {
+        return options;
+    }
+
+    /**
+     * Writes a complete PNG file holding the image.
+     *
+     * @param image The image to encode.
+     * @param output The stream to which the PNG file will be written.
+     * @throws IOException If the underlying stream encounters an IOException.
+     * @throws IllegalStateException If the encoder has been closed.
+     */
+    public void encode (ARGBImage image, OutputStream output) throws IOException {
+        encode(image, output, listener);
+    }
+
+    /**
+     * Writes a complete PNG file holding the image, reporting to a listener other than the encoder's own.
+     */
+    void encode (ARGBImage image, OutputStream output, ITCMetricsListener listener) throws IOException {
+        encode(image.getBuffer(), (int)image.getWidth(), (int)image.getHeight(), output, listener);
+    }
+
+    /**
+     * Releases the native memory held by the encoder's {@link Deflater}s. The encoder can't be used afterwards.
+     */
+    @Override
+    public void close () {
+        closed = true;
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+        for (Deflater blockDeflater = blockDeflaters.poll(); blockDeflater != null;
+            blockDeflater = blockDeflaters.poll())
+        {
+            blockDeflater.end();
+        }
+    }
+
+    /**
+     * Writes a complete PNG file holding the supplied ARGB data.
+     *
+     * @param data The ARGB data, 4 bytes per pixel, starting at position zero.
+     * @param width The width of the image in pixels.
+     * @param height The height of the image in pixels.
+     * @param output The stream to which the PNG file will be written.
+     * @param listener The listener told about the image once it has been encoded.
+     * @throws IOException If the underlying stream encounters an IOException.
+     */
+    void encode (ByteBuffer data, int width, int height, OutputStream output, ITCMetricsListener listener)
+        throws IOException
+    {
+        if (closed) {
+            throw new IllegalStateException("Encoder has been closed");
+        }
+        if ((long)width * height * BYTES_PER_PIXEL > data.remaining()) {
+            throw new IllegalArgumentException(String.format("%d bytes of data is too small for a %dx%d image",
+                data.remaining(), width, height));
+        }
+
+        Object event = FlightRecorderEvents.beginEncodePng();
+        PngColorMode mode = PngColorMode.RGBA_MODE;
+        this.output = output;
+        chunkLength = 0;
+        timed = listener != ITCMetricsListener.NONE;
+        conversionNanos = deflateNanos = crcNanos = 0;
+        try {
+            long start = timed ? System.nanoTime() : 0;
+            if (options.isColorReduction()) {
+                mode = PngColorMode.analyze(data, width * height);
+            }
+            if (timed) {
+                conversionNanos += System.nanoTime() - start;
+            }
+
+            output.write(SIGNATURE);
+            outputBytes = SIGNATURE.length;
+            writeHeader(width, height, (byte)8, mode.getColorType(), (byte)0, (byte)0,
+                (byte)(options.isInterlaced() ? 1 : 0));
+            byte[] palette = mode.paletteChunk();
+            if (palette != null) {
+                writeChunk(PLTE, palette, palette.length);
+            }
+            byte[] transparency = mode.transparencyChunk();
+            if (transparency != null) {
+                writeChunk(TRNS, transparency, transparency.length);
+            }
+
+            int rowsPerBlock = Math.max(1, BLOCK_SIZE / (1 + width * mode.getBytesPerPixel()));
+            if (options.getParallelism() > 1 && height > rowsPerBlock && !options.isInterlaced()) {
+                encodeParallel(data, mode, width, height, rowsPerBlock);
+            } else {
+                encodeSequential(data, mode, width, height);
+            }
+            if (chunkLength > 0) {
+                writeChunk(IDAT, chunk, chunkLength);
+            }
+
+            writeChunk(IEND, EMPTY, 0);
+        } finally {
+            this.output = null;
+        }
+        listener.imageEncoded(width, height, conversionNanos, deflateNanos, crcNanos, outputBytes);
+
+        FlightRecorderEvents.commitEncodePng(event, width, height, options, mode.getColorType(),
+            (long)width * height * BYTES_PER_PIXEL, outputBytes);
+    }
+
+    private void encodeSequential (ByteBuffer data, PngColorMode mode, int width, int height) throws IOException {
+        if (deflater == null) {
+            deflater = newDeflater(false);
+        } else {
+            deflater.reset();
+        }
+
+        if (options.isInterlaced()) {
+            // Each pass is filtered as a separate reduced image, and empty passes are left out entirely.
+            for (int[] pass : ADAM7) {
+                int passWidth = (width - pass[0] + pass[2] - 1) / pass[2];
+                int passHeight = (height - pass[1] + pass[3] - 1) / pass[3];
+                if (passWidth > 0 && passHeight > 0) {
+                    deflateRows(new RowFilter(data, mode, width, options.getFilter(), pass), passHeight);
+                }
+            }
+        } else {
+            deflateRows(new RowFilter(data, mode, width, options.getFilter(), 0), height);
+        }
+
+        deflater.finish();
+        while (!deflater.finished()) {
+            deflate(deflater);
+        }
+    }
+
+    private void deflateRows (RowFilter rows, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            long start = timed ? System.nanoTime() : 0;
+            byte[] row = rows.next();
+            if (timed) {
+                conversionNanos += System.nanoTime() - start;
+            }
+            deflater.setInput(row);
+            while (!deflater.needsInput()) {
+                deflate(deflater);
+            }
+        }
+    }
+
+    private Deflater newDeflater (boolean raw) {
+        Deflater newDeflater = new Deflater(options.getCompressionLevel(), raw);
+        newDeflater.setStrategy(options.getStrategy());
+        return newDeflater;
+    }
+
+    /**
+     * Deflates into the chunk buffer, writing it out as an IDAT chunk if it fills up.
+     */
+    private void deflate (Deflater deflater) throws IOException {
+        long start = timed ? System.nanoTime() : 0;
+        chunkLength += deflater.deflate(chunk, chunkLength, chunk.length - chunkLength);
+        if (timed) {
+            deflateNanos += System.nanoTime() - start;
+        }
+        if (chunkLength == chunk.length) {
+            writeChunk(IDAT, chunk, chunkLength);
+            chunkLength = 0;
+        }
+    }
+
+    private void encodeParallel (final ByteBuffer data, final PngColorMode mode, final int width, final int height,
+        int rowsPerBlock) throws IOException
+    {
+        writeIdat(zlibHeader(options.getCompressionLevel()), 0, 2);
+
+        // Blocks are compressed on the encoders' own pool, but no more than getParallelism() are in flight (and held in
+        // memory) at once. They are written out in order as they complete.
+        Deque<CompletableFuture<Block>> pending = new ArrayDeque<CompletableFuture<Block>>();
+        long adler = 1;
+        for (int start = 0; start < height; start += rowsPerBlock) {
+            final int blockStart = start;
+            final int blockEnd = Math.min(height, start + rowsPerBlock);
+            pending.add(CompletableFuture.supplyAsync(() -> compressBlock(data, mode, width, blockStart, blockEnd,
+                blockEnd == height), BlockPool.POOL));
+
+            if (pending.size() >= options.getParallelism()) {
+                adler = writeBlock(join(pending.poll()), adler);
+            }
+        }
+        while (!pending.isEmpty()) {
+            adler = writeBlock(join(pending.poll()), adler);
+        }
+
+        putInt(intBuffer, 0, (int)adler);
+        writeIdat(intBuffer, 0, 4);
+    }
+
+    /**
+     * The pool parallel encodes compress their blocks on, created the first time one is needed. Its threads are
+     * daemons that exit once they have been idle for a while. The common pool isn't used because
+     * {@link CompletableFuture} runs tasks given to a common pool with a parallelism below two (as on one or two
+     * processor hosts) on a new thread each.
+     */
+    private static final class BlockPool {
+        private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    private long writeBlock (Block block, long adler) throws IOException {
+        writeIdat(block.data, 0, block.length);
+        conversionNanos += block.conversionNanos;
+        deflateNanos += block.deflateNanos;
+        return combineAdler32(adler, block.adler, block.uncompressedLength);
+    }
+
+    /**
+     * Filters and compresses rows {@code start} (inclusive) to {@code end} (exclusive) as raw deflate data.
+     */
+    private Block compressBlock (ByteBuffer data, PngColorMode mode, int width, int start, int end, boolean last) {
+        long blockStart = timed ? System.nanoTime() : 0;
+        long conversion = 0;
+        int rowSize = 1 + width * mode.getBytesPerPixel();
+        Deflater deflater = blockDeflaters.poll();
+        if (deflater == null) {
+            deflater = newDeflater(true);
+        } else {
+            deflater.reset();
+        }
+        try {
+            // The decoder will have the end of the previous block in its window, so compress with the same history.
+            // Filtering is deterministic, so the previous block's last rows can simply be filtered again here.
+            int dictionaryRows = Math.min(start, (DICTIONARY_SIZE + rowSize - 1) / rowSize);
+            RowFilter rows = new RowFilter(data, mode, width, options.getFilter(), start - dictionaryRows);
+            if (dictionaryRows > 0) {
+                byte[] dictionary = new byte[dictionaryRows * rowSize];
+                for (int i = 0; i < dictionaryRows; i++) {
+                    System.arraycopy(rows.next(), 0, dictionary, i * rowSize, rowSize);
+                }
+                int dictionaryLength = Math.min(dictionary.length, DICTIONARY_SIZE);
+                deflater.setDictionary(dictionary, dictionary.length - dictionaryLength, dictionaryLength);
+            }
+
+            Adler32 adler32 = new Adler32();
+            byte[] compressed = new byte[Math.max(1024, (end - start) * rowSize / 2)];
+            int length = 0;
+            for (int y = start; y < end; y++) {
+                long rowStart = timed ? System.nanoTime() : 0;
+                byte[] row = rows.next();
+                if (timed) {
+                    conversion += System.nanoTime() - rowStart;
+                }
+                adler32.update(row, 0, rowSize);
+                deflater.setInput(row, 0, rowSize);
+                while (!deflater.needsInput()) {
+                    if (length == compressed.length) {
+                        compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                    }
+                    length += deflater.deflate(compressed, length, compressed.length - length);
+                }
+            }
+
+            // The last block ends the deflate stream; the others are flushed to a byte boundary so the next block can
+            // follow directly.
+            if (last) {
+                deflater.finish();
+            }
+            while (true) {
+                if (length == compressed.length) {
+                    compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                }
+                length += deflater.deflate(compressed, length, compressed.length - length,
+                    last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                if (last ? deflater.finished() : length < compressed.length) {
+                    break;
+                }
+            }
+
+            // Everything other than converting the block's own rows counts as compressing it.
+            long total = timed ? System.nanoTime() - blockStart : 0;
+            return new Block(compressed, length, adler32.getValue(), (long)(end - start) * rowSize, conversion,
+                total - conversion);
+        } finally {
+            blockDeflaters.offer(deflater);
+            // A block can still be running when an encode fails and the encoder is closed; don't leak its deflater.
+            if (closed && blockDeflaters.remove(deflater)) {
+                deflater.end();
+            }
+        }
+    }
+
+    private static Block join (CompletableFuture<Block> block) {
+        try {
+            return block.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the two byte zlib header for a deflate stream with a 32KB window, advertising the compression level.
+     */
+    private static byte[] zlibHeader (int level) {
+        int compressionMethod = 0x78;
+        int levelFlags;
+        if (level == Deflater.DEFAULT_COMPRESSION || level == 6) {
+            levelFlags = 2;
+        } else if (level < 2) {
+            levelFlags = 0;
+        } else if (level < 6) {
+            levelFlags = 1;
+        } else {
+            levelFlags = 3;
+        }
+        int flags = levelFlags << 6;
+        flags += 31 - ((compressionMethod << 8) + flags) % 31;
+        return new byte[] {(byte)compressionMethod, (byte)flags};
+    }
+
+    /**
+     * Computes the Adler-32 of two sequences joined together from the checksums of each, as zlib's adler32_combine()
+     * does.
+     *
+     * @param adler1 The checksum of the first sequence.
+     * @param adler2 The checksum of the second sequence.
+     * @param length2 The length of the second sequence.
+     */
+    static long combineAdler32 (long adler1, long adler2, long length2) {
+        long remainder = length2 % ADLER_BASE;
+        long sum1 = adler1 & 0xFFFF;
+        long sum2 = (remainder * sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xFFFF) + ADLER_BASE - 1;
+        sum2 += ((adler1 >> 16) & 0xFFFF) + ((adler2 >> 16) & 0xFFFF) + ADLER_BASE - remainder;
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum2 >= (ADLER_BASE << 1)) {
+            sum2 -= (ADLER_BASE << 1);
+        }
+        if (sum2 >= ADLER_BASE) {
+            sum2 -= ADLER_BASE;
+        }
+        return sum1 | (sum2 << 16);
+    }
+
+    /**
+     * Appends bytes to the chunk buffer, writing out IDAT chunks as it fills.
+     */
+    private void writeIdat (byte[] data, int offset, int length) throws IOException {
+        while (length > 0) {
+            int count = Math.min(length, chunk.length - chunkLength);
+            System.arraycopy(data, offset, chunk, chunkLength, count);
+            chunkLength += count;
+            offset += count;
+            length -= count;
+            if (chunkLength == chunk.length) {
+                writeChunk(IDAT, chunk, chunkLength);
+                chunkLength = 0;
+            }
+        }
+    }
+
+    private void writeHeader (int width, int height, byte depth, byte colorType, byte compression, byte filter,
+        byte interlace) throws IOException
+    {
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = depth;
+        header[9] = colorType;
+        header[10] = compression;
+        header[11] = filter;
+        header[12] = interlace;
+        writeChunk(IHDR, header, header.length);
+    }
+
+    private void writeChunk (byte[] name, byte[] data, int length) throws IOException {
+        long start = timed ? System.nanoTime() : 0;
+        crc32.reset();
+        crc32.update(name);
+        crc32.update(data, 0, length);
+        if (timed) {
+            crcNanos += System.nanoTime() - start;
+        }
+        outputBytes += 12 + length;
+
+        writeInt(length);
+        output.write(name);
+        output.write(data, 0, length);
+        writeInt((int)crc32.getValue());
+    }
+
+    private void writeInt (int value) throws IOException {
+        putInt(intBuffer, 0, value);
+        output.write(intBuffer);
+    }
+
+    private static void putInt (byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte)(value >>> 24);
+        buffer[offset + 1] = (byte)(value >>> 16);
+        buffer[offset + 2] = (byte)(value >>> 8);
+        buffer[offset + 3] = (byte)value;
+    }
+
+    /**
+     * Converts consecutive rows of ARGB data to the image's color mode and filters them, keeping the unfiltered
+     * previous row that the filters predict from. Rows are either whole rows of the image or the reduced rows of an
+     * Adam7 pass.
+     */
+    private static final class RowFilter {
+        private final IntBuffer pixels;
+        private final PngColorMode mode;
+        private final int imageWidth;
+        private final int xStart;
+        private final int xStep;
+        private final int yStart;
+        private final int yStep;
+        private final PngOptions.Filter filter;
+        private final int[] imagePixels;
+        private final int[] rowPixels;
+        private byte[] row;
+        private IntBuffer rowView;
+        private byte[] prior;
+        private IntBuffer priorView;
+        private final byte[] filtered;
+        private final byte[] scratch;
+        private int y;
+
+        /**
+         * @param start The first row that {@link #next()} will return.
+         */
+        private RowFilter (ByteBuffer data, PngColorMode mode, int width, PngOptions.Filter filter, int start) {
+            this(data, mode, width, filter, new int[] {0, 0, 1, 1}, start);
+        }
+
+        /**
+         * @param pass The first column, first row, column step and row step of an Adam7 pass.
+         */
+        private RowFilter (ByteBuffer data, PngColorMode mode, int width, PngOptions.Filter filter, int[] pass) {
+            this(data, mode, width, filter, pass, 0);
+        }
+
+        private RowFilter (ByteBuffer data, PngColorMode mode, int width, PngOptions.Filter filter, int[] pass,
+            int start)
+        {
+            int passWidth = (width - pass[0] + pass[2] - 1) / pass[2];
+            int rowLength = passWidth * mode.getBytesPerPixel();
+            // Big endian ints of ARGB data are exactly the pixels' 0xAARRGGBB values.
+            this.pixels = data.duplicate().order(ByteOrder.BIG_ENDIAN).asIntBuffer();
+            this.mode = mode;
+            this.imageWidth = width;
+            this.xStart = pass[0];
+            this.yStart = pass[1];
+            this.xStep = pass[2];
+            this.yStep = pass[3];
+            this.filter = filter;
+            imagePixels = xStep > 1 ? new int[width] : null;
+            rowPixels = new int[passWidth];
+            row = new byte[rowLength];
+            rowView = ByteBuffer.wrap(row).asIntBuffer();
+            prior = new byte[rowLength];
+            priorView = ByteBuffer.wrap(prior).asIntBuffer();
+            filtered = new byte[1 + rowLength];
+            scratch = new byte[1 + rowLength];
+            y = start;
+            if (start > 0) {
+                convert(start - 1, prior, priorView);
+            }
+        }
+
+        /**
+         * @return The filter type byte and filtered bytes of the next row. Only valid until the next call.
+         */
+        private byte[] next () {
+            convert(y++, row, rowView);
+            byte[] out = PngFilters.filter(filter, row, prior, row.length, mode.getBytesPerPixel(), filtered,
+                scratch);
+            byte[] swap = prior;
+            prior = row;
+            row = swap;
+            IntBuffer swapView = priorView;
+            priorView = rowView;
+            rowView = swapView;
+            return out;
+        }
+
+        private void convert (int y, byte[] out, IntBuffer outInts) {
+            ((Buffer)pixels).position((yStart + y * yStep) * imageWidth);
+            if (imagePixels == null) {
+                pixels.get(rowPixels);
+            } else {
+                pixels.get(imagePixels);
+                for (int x = 0, i = xStart; x < rowPixels.length; x++, i += xStep) {
+                    rowPixels[x] = imagePixels[i];
+                }
+            }
+            mode.convert(rowPixels, out, outInts);
+        }
+    }
+
+    private static final class Block {
+        private final byte[] data;
+        private final int length;
+        private final long adler;
+        private final long uncompressedLength;
+        private final long conversionNanos;
+        private final long deflateNanos;
+
+        private Block (byte[] data, int length, long adler, long uncompressedLength, long conversionNanos,
+            long deflateNanos)
+        {
+            this.data = data;
+            this.length = length;
+            this.adler = adler;
+            this.uncompressedLength = uncompressedLength;
+            this.conversionNanos = conversionNanos;
+            this.deflateNanos = deflateNanos;
+        }
+    }
+}
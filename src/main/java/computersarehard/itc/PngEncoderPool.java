@@ -0,0 +1,123 @@
+/*
+  Copyright 2013 Peter Rebholz
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package computersarehard.itc;
+
+import java.io.Closeable;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A thread safe pool of a fixed maximum number of {@link PngEncoder}s sharing the same options, for servers that
+ * encode on many short lived threads and so can't rely on {@link PngEncoder#forCurrentThread(PngOptions)}.
+ *
+ * <p>
+ *  Encoders are created as they are first needed, up to the pool's size. Once every encoder is in use,
+ *  {@link #acquire()} waits for one to be released, which also limits how many images are encoded at once.
+ *  {@link #close()} ends the encoders' deflaters.
+ * </p>
+ *
+ * <pre>
+ *     PngEncoder encoder = pool.acquire();
+ *     try {
+ *         encoder.encode(image, output);
+ *     } finally {
+ *         pool.release(encoder);
+ *     }
+ * </pre>
+ */
+public class PngEncoderPool implements Closeable {
+    private final PngOptions options;
+    private final Semaphore available;
+    private final ConcurrentLinkedQueue<PngEncoder> idle = new ConcurrentLinkedQueue<PngEncoder>();
+    private volatile boolean closed = false;
+
+    /**
+     * Constructs a new pool.
+     *
+     * @param options The settings every encoder in the pool uses.
+     * @param size The maximum number of encoders, and so of images encoded at once.
+     */
+    public PngEncoderPool (PngOptions options, int size) {
+        if (options == null) {
+            throw new IllegalArgumentException("Options cannot be null");
+        }
+        if (size < 1) {
+            throw new IllegalArgumentException("Size must be at least 1");
+        }
+
+        this.options = options;
+        available = new Semaphore(size);
+    }
+
+    /**
+     * @return The settings every encoder in the pool uses.
+     */
+    public PngOptions getOptions () {
+        return options;
+    }
+
+    /**
+     * Leases an encoder, waiting for one to be released if they are all in use.
+     *
+     * @return An encoder that must be given back with {@link #release(PngEncoder)} once the image has been encoded.
+     * @throws InterruptedIOException If the thread was interrupted while waiting.
+     * @throws IllegalStateException If the pool has been closed.
+     */
+    public PngEncoder acquire () throws InterruptedIOException {
+        if (closed) {
+            throw new IllegalStateException("Pool has been closed");
+        }
+        try {
+            available.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for an encoder");
+        }
+
+        PngEncoder encoder = idle.poll();
+        return encoder == null ? new PngEncoder(options) : encoder;
+    }
+
+    /**
+     * Gives a leased encoder back to the pool. Encoders released after the pool has been closed are closed instead.
+     *
+     * @param encoder An encoder returned by {@link #acquire()}.
+     */
+    public void release (PngEncoder encoder) {
+        idle.add(encoder);
+        available.release();
+        if (closed) {
+            closeIdle();
+        }
+    }
+
+    /**
+     * Closes every idle encoder, and any encoder in use once it is released.
+     */
+    @Override
+    public void close () {
+        closed = true;
+        closeIdle();
+    }
+
+    private void closeIdle () {
+        PngEncoder encoder;
+        while ((encoder = idle.poll()) != null) {
+            encoder.close();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+  Copyright 2013 Peter Rebholz
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package computersarehard.itc;
+
+/**
+ * Applies PNG row filters (see {@link PngOptions.Filter}).
+ */
+final class PngFilters {
+    private PngFilters () {}
+
+    /**
+     * Filters a row.
+     *
+     * @param filter The filter to apply; {@link PngOptions.Filter#ADAPTIVE} tries every other filter and keeps the best.
+     * @param row The unfiltered row, without a filter type byte.
+     * @param prior The unfiltered previous row, or all zeros for the first row.
+     * @param length The number of bytes in the row.
+     * @param bytesPerPixel The number of bytes per complete pixel (at least 1).
+     * @param out Receives the filter type byte followed by the filtered row; must hold {@code length + 1} bytes.
+     * @param scratch A second buffer the same size as {@code out}, only used by the adaptive filter.
+     * @return The buffer holding the filtered row, which is either {@code out} or {@code scratch}.
+     */
+    static byte[] filter (PngOptions.Filter filter, byte[] row, byte[] prior, int length, int bytesPerPixel,
+        byte[] out, byte[] scratch)
+    {
+        if (filter != PngOptions.Filter.ADAPTIVE) {
+            apply(filter.getType(), row, prior, length, bytesPerPixel, out);
+            return out;
+        }
+
+        // Minimum sum of absolute differences heuristic, as recommended by the PNG specification.
+        byte[] best = null;
+        long bestSum = Long.MAX_VALUE;
+        for (int type = 0; type <= 4; type++) {
+            byte[] candidate = best == out ? scratch : out;
+            apply(type, row, prior, length, bytesPerPixel, candidate);
+            long sum = 0;
+            for (int i = 1; i <= length && sum < bestSum; i++) {
+                sum += Math.abs(candidate[i]);
+            }
+            if (sum < bestSum) {
+                bestSum = sum;
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    private static void apply (int type, byte[] row, byte[] prior, int length, int bpp, byte[] out) {
+        out[0] = (byte)type;
+        switch (type) {
+            case 0:
+                System.arraycopy(row, 0, out, 1, length);
+                break;
+            case 1:
+                System.arraycopy(row, 0, out, 1, Math.min(bpp, length));
+                for (int i = bpp; i < length; i++) {
+                    out[i + 1] = (byte)(row[i] - row[i - bpp]);
+                }
+                break;
+            case 2:
+                for (int i = 0; i < length; i++) {
+                    out[i + 1] = (byte)(row[i] - prior[i]);
+                }
+                break;
+            case 3:
+                for (int i = 0; i < length; i++) {
+                    int left = i < bpp ? 0 : row[i - bpp] & 0xFF;
+                    out[i + 1] = (byte)(row[i] - ((left + (prior[i] & 0xFF)) >>> 1));
+                }
+                break;
+            case 4:
+                for (int i = 0; i < length; i++) {
+                    int left = i < bpp ? 0 : row[i - bpp] & 0xFF;
+                    int upperLeft = i < bpp ? 0 : prior[i - bpp] & 0xFF;
+                    out[i + 1] = (byte)(row[i] - paeth(left, prior[i] & 0xFF, upperLeft));
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown filter type: " + type);
+        }
+    }
+
+    private static int paeth (int left, int above, int upperLeft) {
+        int estimate = left + above - upperLeft;
+        int distanceLeft = Math.abs(estimate - left);
+        int distanceAbove = Math.abs(estimate - above);
+        int distanceUpperLeft = Math.abs(estimate - upperLeft);
+        if (distanceLeft <= distanceAbove && distanceLeft <= distanceUpperLeft) {
+            return left;
+        } else if (distanceAbove <= distanceUpperLeft) {
+            return above;
+        }
+        return upperLeft;
+    }
+}
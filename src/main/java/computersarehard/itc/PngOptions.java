@@ -0,0 +1,243 @@
+/*
+  Copyright 2013 Peter Rebholz
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package computersarehard.itc;
+
+import java.util.zip.Deflater;
+
+/**
+ * Settings used when converting an {@link ARGBImage} to PNG. Instances are immutable; each {@code with} method
+ * returns a copy with one setting changed:
+ *
+ * <pre>
+ *     PngOptions options = PngOptions.DEFAULT.withCompressionLevel(9).withFilter(PngOptions.Filter.ADAPTIVE);
+ *     image.writeToStream(output, options);
+ * </pre>
+ */
+public final class PngOptions {
+    /**
+     * The settings used by {@link ARGBImage#writeToStream(java.io.OutputStream)}: no compression and no filtering.
+     */
+    public static final PngOptions DEFAULT = new PngOptions(Deflater.NO_COMPRESSION, Filter.NONE,
+        Deflater.DEFAULT_STRATEGY, 64 * 1024, 1, false, false);
+
+    private final int compressionLevel;
+    private final Filter filter;
+    private final int strategy;
+    private final int chunkSize;
+    private final int parallelism;
+    private final boolean colorReduction;
+    private final boolean interlaced;
+
+    private PngOptions (int compressionLevel, Filter filter, int strategy, int chunkSize, int parallelism,
+        boolean colorReduction, boolean interlaced)
+    {
+        if ((compressionLevel < 0 || compressionLevel > 9) && compressionLevel != Deflater.DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level: " + compressionLevel);
+        }
+        if (filter == null) {
+            throw new IllegalArgumentException("Filter cannot be null");
+        }
+        if (strategy != Deflater.DEFAULT_STRATEGY && strategy != Deflater.FILTERED
+            && strategy != Deflater.HUFFMAN_ONLY)
+        {
+            throw new IllegalArgumentException("Invalid strategy: " + strategy);
+        }
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be at least 1");
+        }
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        }
+
+        this.compressionLevel = compressionLevel;
+        this.filter = filter;
+        this.strategy = strategy;
+        this.chunkSize = chunkSize;
+        this.parallelism = parallelism;
+        this.colorReduction = colorReduction;
+        this.interlaced = interlaced;
+    }
+
+    /**
+     * @param compressionLevel The compression level to use (see {@link Deflater}).
+     * @return A copy of these options with the specified compression level.
+     */
+    public PngOptions withCompressionLevel (int compressionLevel) {
+        return new PngOptions(compressionLevel, filter, strategy, chunkSize, parallelism, colorReduction,
+            interlaced);
+    }
+
+    /**
+     * @param filter The filter to apply to each row before compression.
+     * @return A copy of these options with the specified filter.
+     */
+    public PngOptions withFilter (Filter filter) {
+        return new PngOptions(compressionLevel, filter, strategy, chunkSize, parallelism, colorReduction,
+            interlaced);
+    }
+
+    /**
+     * @param strategy The {@link Deflater} strategy to compress with: {@link Deflater#DEFAULT_STRATEGY},
+     *  {@link Deflater#FILTERED} (often better for filtered rows) or {@link Deflater#HUFFMAN_ONLY}.
+     * @return A copy of these options with the specified strategy.
+     */
+    public PngOptions withStrategy (int strategy) {
+        return new PngOptions(compressionLevel, filter, strategy, chunkSize, parallelism, colorReduction,
+            interlaced);
+    }
+
+    /**
+     * Compressed data is buffered and written out as IDAT chunks of this size, so it bounds the memory an encoder
+     * holds on to between images as well as the size of each write to the output.
+     *
+     * @param chunkSize The maximum number of bytes in each IDAT chunk. Defaults to 64KB.
+     * @return A copy of these options with the specified chunk size.
+     */
+    public PngOptions withChunkSize (int chunkSize) {
+        return new PngOptions(compressionLevel, filter, strategy, chunkSize, parallelism, colorReduction,
+            interlaced);
+    }
+
+    /**
+     * Compressing a large image in parallel splits it into blocks of rows that are filtered and compressed
+     * concurrently on a {@link java.util.concurrent.ForkJoinPool} shared by every encoder. The output is a little
+     * larger than when compressing sequentially, as each block is compressed without knowing about the blocks after
+     * it. Images too small to split are always compressed sequentially.
+     *
+     * @param parallelism The maximum number of blocks to compress at once, or 1 to compress sequentially.
+     * @return A copy of these options with the specified parallelism.
+     */
+    public PngOptions withParallelism (int parallelism) {
+        return new PngOptions(compressionLevel, filter, strategy, chunkSize, parallelism, colorReduction,
+            interlaced);
+    }
+
+    /**
+     * Color type reduction scans the image before encoding it and, where it can do so without losing anything, writes
+     * it with fewer bytes per pixel than RGBA: grayscale if every pixel is opaque gray, an 8 bit palette if it has no
+     * more than 256 distinct colors, grayscale with alpha if every pixel is gray, or RGB if every pixel is opaque.
+     *
+     * @param colorReduction True to reduce the color type where possible, false to always write RGBA.
+     * @return A copy of these options with color type reduction enabled or disabled.
+     */
+    public PngOptions withColorReduction (boolean colorReduction) {
+        return new PngOptions(compressionLevel, filter, strategy, chunkSize, parallelism, colorReduction,
+            interlaced);
+    }
+
+    /**
+     * Interlaced images are written as the seven Adam7 passes, the first of which holds every eighth pixel of every
+     * eighth row. A decoder reading the file as it arrives can show a coarse version of the whole image after the
+     * first few percent and refine it with each pass. Interlaced files are usually somewhat larger, and are always
+     * compressed sequentially regardless of {@link #withParallelism(int)}.
+     *
+     * @param interlaced True to write Adam7 interlaced images, false to write rows in order.
+     * @return A copy of these options with interlacing enabled or disabled.
+     */
+    public PngOptions withInterlace (boolean interlaced) {
+        return new PngOptions(compressionLevel, filter, strategy, chunkSize, parallelism, colorReduction,
+            interlaced);
+    }
+
+    public int getCompressionLevel () {
+        return compressionLevel;
+    }
+
+    public Filter getFilter () {
+        return filter;
+    }
+
+    public int getStrategy () {
+        return strategy;
+    }
+
+    public int getChunkSize () {
+        return chunkSize;
+    }
+
+    public int getParallelism () {
+        return parallelism;
+    }
+
+    public boolean isColorReduction () {
+        return colorReduction;
+    }
+
+    public boolean isInterlaced () {
+        return interlaced;
+    }
+
+    @Override
+    public boolean equals (Object o) {
+        if (!(o instanceof PngOptions)) {
+            return false;
+        }
+        PngOptions other = (PngOptions)o;
+        return compressionLevel == other.compressionLevel && filter == other.filter && strategy == other.strategy
+            && chunkSize == other.chunkSize && parallelism == other.parallelism
+            && colorReduction == other.colorReduction && interlaced == other.interlaced;
+    }
+
+    @Override
+    public int hashCode () {
+        int hash = compressionLevel * 31 + filter.hashCode();
+        hash = (hash * 31 + strategy) * 31 + chunkSize;
+        hash = (hash * 31 + parallelism) * 31 + (colorReduction ? 1 : 0);
+        return hash * 31 + (interlaced ? 1 : 0);
+    }
+
+    @Override
+    public String toString () {
+        return String.format("{PngOptions -> compressionLevel: %d, filter: %s, strategy: %d, chunkSize: %d, "
+            + "parallelism: %d, colorReduction: %b, interlaced: %b}", compressionLevel, filter, strategy, chunkSize,
+            parallelism, colorReduction, interlaced);
+    }
+
+    /**
+     * The PNG row filters. Filtering replaces each byte with its difference from a prediction based on neighbouring
+     * bytes, which for photographic artwork leaves values clustered around zero that compress far better.
+     */
+    public enum Filter {
+        /** Bytes are left unchanged. Fastest, but compresses poorly. */
+        NONE(0),
+        /** Predicts each byte from the pixel to its left. */
+        SUB(1),
+        /** Predicts each byte from the pixel above. */
+        UP(2),
+        /** Predicts each byte from the average of the pixels to the left and above. */
+        AVERAGE(3),
+        /** Predicts each byte with the Paeth predictor, using the pixels to the left, above and above left. */
+        PAETH(4),
+        /**
+         * Chooses a filter for each row separately, picking the one whose output has the smallest sum of absolute
+         * (signed) byte values. Slower to encode, but usually produces the smallest files.
+         */
+        ADAPTIVE(-1);
+
+        private final int type;
+
+        private Filter (int type) {
+            this.type = type;
+        }
+
+        /**
+         * @return The filter type byte written before each row, or -1 for {@link #ADAPTIVE}.
+         */
+        int getType () {
+            return type;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+  Copyright 2013 Peter Rebholz
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package computersarehard.itc;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A Java Flight Recorder event recorded by {@link ITCImageReader#readImage()} for each image read, so that slow reads
+ * can be traced back to the .itc file and image responsible.
+ */
+@Name("computersarehard.itc.ReadImage")
+@Label("Read ITC Image")
+@Category("ITC")
+@Description("An image read from an .itc file")
+final class ReadImageEvent extends Event {
+    @Label("Source")
+    @Description("The .itc file being read, if the reader was given a file")
+    String source;
+
+    @Label("Frames")
+    @Description("The number of frames and subframes parsed to reach the image")
+    int frames;
+
+    @Label("Format")
+    String format;
+
+    @Label("Width")
+    long width;
+
+    @Label("Height")
+    long height;
+
+    @Label("Offset")
+    @Description("The offset of the image data within the file")
+    long offset;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+}
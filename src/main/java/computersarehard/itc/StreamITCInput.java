@@ -0,0 +1,134 @@
+/*
+  Copyright 2013 Peter Rebholz
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package computersarehard.itc;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link ITCInput} that reads from an arbitrary {@link InputStream}. Payloads are copied into newly allocated
+ * arrays, or into arrays leased from a {@link BufferPool}.
+ */
+final class StreamITCInput extends ITCInput {
+    private final InputStream input;
+    private final BufferPool pool;
+    private long position = 0;
+    private boolean hashing = false;
+
+    StreamITCInput (InputStream stream) {
+        this(stream, null);
+    }
+
+    /**
+     * @param stream The stream to read from.
+     * @param pool If not null, payloads are read into arrays leased from this pool.
+     */
+    StreamITCInput (InputStream stream, BufferPool pool) {
+        // Headers are read a few bytes at a time, so make sure those reads are buffered. Streams that support mark are
+        // assumed to be buffered (or in memory) already.
+        if (!stream.markSupported()) {
+            stream = new BufferedInputStream(stream);
+        }
+
+        input = stream;
+        this.pool = pool;
+    }
+
+    @Override
+    int read (byte[] buffer, int offset, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int read = input.read(buffer, offset + total, length - total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        position += total;
+        return total == 0 && length > 0 ? -1 : total;
+    }
+
+    @Override
+    void skip (long count) throws IOException {
+        while (count > 0) {
+            long skipped = input.skip(count);
+            if (skipped <= 0) {
+                // skip() is allowed to give up early, fall back to read() to tell the difference between that and EOF.
+                if (input.read() < 0) {
+                    return;
+                }
+                skipped = 1;
+            }
+            count -= skipped;
+            position += skipped;
+        }
+    }
+
+    @Override
+    long position () {
+        return position;
+    }
+
+    @Override
+    Payload readPayload (int size) throws IOException {
+        byte[] data = pool == null ? new byte[size] : pool.acquire(size);
+        XXHash64 hash = hashing ? new XXHash64(0) : null;
+        int read;
+        if (hash == null) {
+            read = read(data, 0, size);
+        } else {
+            read = 0;
+            while (read < size) {
+                int count = read(data, read, Math.min(size - read, XXHash64.CHUNK_SIZE));
+                if (count < 0) {
+                    break;
+                }
+                hash.update(data, read, count);
+                read += count;
+            }
+        }
+        if (read != size) {
+            if (pool != null) {
+                pool.release(data);
+            }
+            throw new IOException(String.format("Expected to read %d bytes but instead got %d", size, read));
+        }
+        Payload payload = pool == null ? Payload.of(ByteBuffer.wrap(data)) : Payload.pooled(data, size, pool);
+        return hash == null ? payload : payload.withHash(hash.getValue());
+    }
+
+    @Override
+    void setHashing (boolean hashing) {
+        this.hashing = hashing;
+    }
+
+    @Override
+    boolean copiesPayloads () {
+        return true;
+    }
+
+    @Override
+    boolean allocatesPayloads () {
+        return pool == null;
+    }
+
+    @Override
+    public void close () throws IOException {
+        input.close();
+    }
+}
@@ -0,0 +1,153 @@
+/*
+  Copyright 2013 Peter Rebholz
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package computersarehard.itc;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A streaming implementation of the XXH64 hash, a fast non-cryptographic 64 bit hash that processes 32 bytes per
+ * round. Used to recognise identical image payloads without comparing them byte by byte.
+ *
+ * <p>
+ *  Bytes can be supplied in any number of {@link #update(ByteBuffer)} calls; the result is the same as hashing them
+ *  all at once with {@link #hash(ByteBuffer, long)}.
+ * </p>
+ */
+final class XXHash64 {
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+    private static final int STRIPE = 32;
+
+    /**
+     * The number of bytes callers hash at a time when streaming data through the hash, small enough that each chunk
+     * is still in the CPU's cache when it is hashed.
+     */
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    private final long seed;
+    private long v1, v2, v3, v4;
+    private long totalLength = 0;
+    // Bytes left over from the last update that didn't fill a whole stripe.
+    private final ByteBuffer pending = ByteBuffer.allocate(STRIPE).order(ByteOrder.LITTLE_ENDIAN);
+
+    XXHash64 (long seed) {
+        this.seed = seed;
+        v1 = seed + PRIME1 + PRIME2;
+        v2 = seed + PRIME2;
+        v3 = seed;
+        v4 = seed - PRIME1;
+    }
+
+    /**
+     * Hashes the buffer's remaining bytes without changing its position.
+     */
+    static long hash (ByteBuffer data, long seed) {
+        XXHash64 hash = new XXHash64(seed);
+        hash.update(data);
+        return hash.getValue();
+    }
+
+    /**
+     * Adds the buffer's remaining bytes to the hash without changing its position.
+     */
+    void update (ByteBuffer data) {
+        ByteBuffer input = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        totalLength += input.remaining();
+
+        if (pending.position() > 0) {
+            while (pending.hasRemaining() && input.hasRemaining()) {
+                pending.put(input.get());
+            }
+            if (pending.hasRemaining()) {
+                return;
+            }
+            ((Buffer)pending).flip();
+            stripe(pending);
+            ((Buffer)pending).clear();
+        }
+
+        while (input.remaining() >= STRIPE) {
+            stripe(input);
+        }
+        pending.put(input);
+    }
+
+    void update (byte[] data, int offset, int length) {
+        update(ByteBuffer.wrap(data, offset, length));
+    }
+
+    /**
+     * @return The hash of every byte supplied so far. Further bytes can still be added afterwards.
+     */
+    long getValue () {
+        long hash;
+        if (totalLength >= STRIPE) {
+            hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12)
+                + Long.rotateLeft(v4, 18);
+            hash = mergeRound(hash, v1);
+            hash = mergeRound(hash, v2);
+            hash = mergeRound(hash, v3);
+            hash = mergeRound(hash, v4);
+        } else {
+            hash = seed + PRIME5;
+        }
+        hash += totalLength;
+
+        ByteBuffer tail = pending.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        ((Buffer)tail).flip();
+        while (tail.remaining() >= 8) {
+            hash ^= round(0, tail.getLong());
+            hash = Long.rotateLeft(hash, 27) * PRIME1 + PRIME4;
+        }
+        if (tail.remaining() >= 4) {
+            hash ^= (tail.getInt() & 0xFFFFFFFFL) * PRIME1;
+            hash = Long.rotateLeft(hash, 23) * PRIME2 + PRIME3;
+        }
+        while (tail.hasRemaining()) {
+            hash ^= (tail.get() & 0xFF) * PRIME5;
+            hash = Long.rotateLeft(hash, 11) * PRIME1;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= PRIME2;
+        hash ^= hash >>> 29;
+        hash *= PRIME3;
+        hash ^= hash >>> 32;
+        return hash;
+    }
+
+    private void stripe (ByteBuffer input) {
+        v1 = round(v1, input.getLong());
+        v2 = round(v2, input.getLong());
+        v3 = round(v3, input.getLong());
+        v4 = round(v4, input.getLong());
+    }
+
+    private static long round (long accumulator, long input) {
+        accumulator += input * PRIME2;
+        return Long.rotateLeft(accumulator, 31) * PRIME1;
+    }
+
+    private static long mergeRound (long hash, long value) {
+        hash ^= round(0, value);
+        return hash * PRIME1 + PRIME4;
+    }
+}
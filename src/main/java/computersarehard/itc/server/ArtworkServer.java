@@ -0,0 +1,411 @@
+/*
+  Copyright 2013 Peter Rebholz
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package computersarehard.itc.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import computersarehard.itc.EncodedImageCache;
+import computersarehard.itc.ITCEntry;
+import computersarehard.itc.ITCImage;
+import computersarehard.itc.ITCImageReader;
+import computersarehard.itc.PngEncoderPool;
+import computersarehard.itc.PngOptions;
+
+/**
+ * A small HTTP server for the artwork in a directory of .itc files, built on the JDK's {@code com.sun.net.httpserver}
+ * so it needs no other dependencies.
+ *
+ * <p>
+ *  {@code GET /artwork/{file}/{index}} returns image number {@code index} (counting from zero) of the .itc file at the
+ *  path {@code file} below the root directory, with {@code /} in the path encoded as {@code %2F}. For example:
+ * </p>
+ *
+ * <pre>
+ *     ArtworkServer server = new ArtworkServer(new File("/srv/artwork"), new InetSocketAddress(8080));
+ *     server.start();
+ *     // GET http://localhost:8080/artwork/Cache%2F01%2F0A1B2C3D4E5F.itc/0
+ * </pre>
+ *
+ * <p>
+ *  PNG and JPEG images are sent straight from the .itc file with {@link FileChannel#transferTo(long, long,
+ *  WritableByteChannel)}, without ever being read into an {@link ITCImage}. {@code com.sun.net.httpserver} only
+ *  exposes the connection as an {@link OutputStream}, so the JDK still copies the data through a small buffer rather
+ *  than handing it to the operating system. ARGB images are converted to PNG and kept
+ *  in an {@link EncodedImageCache}. Responses carry a strong {@code ETag} derived from the file's modification time and
+ *  the image's location, so clients can revalidate with {@code If-None-Match}, and a single {@code Range} of bytes can
+ *  be requested. {@code HEAD} requests are also supported.
+ * </p>
+ *
+ * <p>
+ *  Each request is handled on its own virtual thread when running on a JDK that has them, and otherwise on a cached
+ *  thread pool. ARGB images are encoded with a {@link PngEncoderPool} holding one encoder per processor, which also
+ *  limits how many are encoded at once.
+ * </p>
+ */
+public class ArtworkServer {
+    /**
+     * The settings ARGB images are encoded with by default: zlib's default compression level and adaptive filtering.
+     * Each image is only encoded once while it stays cached, so it's worth spending the time to make it small.
+     */
+    public static final PngOptions DEFAULT_OPTIONS = PngOptions.DEFAULT.withCompressionLevel(
+        Deflater.DEFAULT_COMPRESSION).withFilter(PngOptions.Filter.ADAPTIVE);
+
+    private static final Logger LOG = Logger.getLogger(ArtworkServer.class.getName());
+    private static final String CONTEXT = "/artwork/";
+    private static final long DEFAULT_CACHE_BYTES = 64L * 1024 * 1024;
+    private static final int MAX_INDEXES = 1024;
+
+    private final File root;
+    private final PngOptions options;
+    private final EncodedImageCache cache;
+    private final PngEncoderPool encoders;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    // Access ordered, so iteration starts at the least recently used file.
+    private final LinkedHashMap<File, Index> indexes = new LinkedHashMap<File, Index>(64, 0.75f, true);
+
+    /**
+     * Constructs a new server that encodes ARGB images with {@link #DEFAULT_OPTIONS} and caches up to 64MB of them.
+     *
+     * @param root The directory containing the .itc files to serve.
+     * @param address The address to listen on. A port of zero picks any free port.
+     * @throws IOException If the server can't be bound to the address.
+     */
+    public ArtworkServer (File root, InetSocketAddress address) throws IOException {
+        this(root, address, DEFAULT_OPTIONS, new EncodedImageCache(DEFAULT_CACHE_BYTES));
+    }
+
+    /**
+     * Constructs a new server.
+     *
+     * @param root The directory containing the .itc files to serve.
+     * @param address The address to listen on. A port of zero picks any free port.
+     * @param options The settings ARGB images are encoded with.
+     * @param cache The cache that encoded ARGB images are kept in.
+     * @throws IOException If the server can't be bound to the address.
+     */
+    public ArtworkServer (File root, InetSocketAddress address, PngOptions options, EncodedImageCache cache)
+        throws IOException
+    {
+        if (!root.isDirectory()) {
+            throw new IllegalArgumentException("Not a directory: " + root);
+        }
+        if (options == null || cache == null) {
+            throw new IllegalArgumentException("Options and cache cannot be null");
+        }
+
+        this.root = root.getCanonicalFile();
+        this.options = options;
+        this.cache = cache;
+        encoders = new PngEncoderPool(options, Runtime.getRuntime().availableProcessors());
+        executor = newExecutor();
+        server = HttpServer.create(address, 0);
+        server.createContext(CONTEXT, new ArtworkHandler());
+        server.setExecutor(executor);
+    }
+
+    /**
+     * Starts accepting requests in the background.
+     */
+    public void start () {
+        server.start();
+    }
+
+    /**
+     * Stops the server, waiting up to {@code delay} seconds for requests in progress to complete, and closes its PNG
+     * encoders.
+     *
+     * @param delay The maximum time to wait in seconds.
+     */
+    public void stop (int delay) {
+        server.stop(delay);
+        executor.shutdown();
+        encoders.close();
+    }
+
+    /**
+     * @return The address the server is listening on, including the port chosen if it was created with port zero.
+     */
+    public InetSocketAddress getAddress () {
+        return server.getAddress();
+    }
+
+    /**
+     * Returns an executor that runs each task on a new virtual thread, or a cached thread pool on JDKs without virtual
+     * threads. Looked up reflectively so the library still builds and runs on older JDKs.
+     */
+    private static ExecutorService newExecutor () {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService)factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    /**
+     * Returns the table of contents of an .itc file, reading it again only if the file has changed. The tables of the
+     * 1024 most recently requested files are kept.
+     */
+    private Index index (File file) throws IOException {
+        Index index;
+        synchronized (indexes) {
+            index = indexes.get(file);
+        }
+        long modified = file.lastModified();
+        long length = file.length();
+        if (index == null || index.modified != modified || index.length != length) {
+            ITCImageReader reader = new ITCImageReader(new FileInputStream(file));
+            try {
+                index = new Index(modified, length, reader.index());
+            } finally {
+                reader.close();
+            }
+            synchronized (indexes) {
+                indexes.put(file, index);
+                Iterator<Index> eldest = indexes.values().iterator();
+                while (indexes.size() > MAX_INDEXES) {
+                    eldest.next();
+                    eldest.remove();
+                }
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Resolves a file name from a request against the root directory, refusing anything outside of it.
+     *
+     * @return The file, or null if it doesn't exist or isn't below the root.
+     */
+    private File resolve (String name) throws IOException {
+        File file = new File(root, name).getCanonicalFile();
+        if (!file.isFile() || !file.getPath().startsWith(root.getPath() + File.separator)) {
+            return null;
+        }
+        return file;
+    }
+
+    private final class ArtworkHandler implements HttpHandler {
+        @Override
+        public void handle (HttpExchange exchange) throws IOException {
+            try {
+                String method = exchange.getRequestMethod();
+                boolean head = "HEAD".equals(method);
+                if (!head && !"GET".equals(method)) {
+                    exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                    sendStatus(exchange, 405);
+                    return;
+                }
+
+                // The raw path keeps an encoded / in the file name from being treated as a separator.
+                String[] parts = exchange.getRequestURI().getRawPath().substring(CONTEXT.length()).split("/");
+                int number;
+                try {
+                    number = parts.length == 2 ? Integer.parseInt(parts[1]) : -1;
+                } catch (NumberFormatException e) {
+                    number = -1;
+                }
+                File file = number < 0 ? null : resolve(decode(parts[0]));
+                List<ITCEntry> entries = file == null ? null : index(file).entries;
+                if (entries == null || number >= entries.size()) {
+                    sendStatus(exchange, 404);
+                    return;
+                }
+
+                serve(exchange, file, entries.get(number), head);
+            } catch (IOException | RuntimeException e) {
+                // Once the headers have been sent the only thing left to do is drop the connection, which is usually
+                // down to the client going away.
+                if (exchange.getResponseCode() == -1) {
+                    LOG.log(Level.WARNING, "Failed to serve " + exchange.getRequestURI(), e);
+                    sendStatus(exchange, 500);
+                } else {
+                    LOG.log(Level.FINE, "Failed to send " + exchange.getRequestURI(), e);
+                }
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private void serve (HttpExchange exchange, File file, ITCEntry entry, boolean head) throws IOException {
+            boolean encoded = entry.getFormat() == ITCImage.Format.ARGB;
+            Headers response = exchange.getResponseHeaders();
+            String etag = String.format("\"%x-%x-%x\"", file.lastModified(), entry.getOffset(),
+                encoded ? options.hashCode() : 0);
+            response.set("ETag", etag);
+            response.set("Accept-Ranges", "bytes");
+            response.set("Content-Type", "image/" + (entry.getFormat() == ITCImage.Format.JPEG ? "jpeg" : "png"));
+
+            if (matches(exchange.getRequestHeaders().getFirst("If-None-Match"), etag)) {
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+
+            ByteBuffer data = encoded ? cache.get(file, entry, encoders) : null;
+            long length = encoded ? data.remaining() : entry.getLength();
+            long[] range = range(exchange.getRequestHeaders().getFirst("Range"), length);
+            if (range != null && range.length == 0) {
+                response.set("Content-Range", "bytes */" + length);
+                sendStatus(exchange, 416);
+                return;
+            }
+
+            long start = range == null ? 0 : range[0];
+            long count = range == null ? length : range[1] - range[0] + 1;
+            if (range != null) {
+                response.set("Content-Range", String.format("bytes %d-%d/%d", range[0], range[1], length));
+            }
+            if (head) {
+                response.set("Content-Length", Long.toString(count));
+                exchange.sendResponseHeaders(range == null ? 200 : 206, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(range == null ? 200 : 206, count == 0 ? -1 : count);
+
+            OutputStream body = exchange.getResponseBody();
+            if (encoded) {
+                ByteBuffer slice = data.duplicate();
+                ((Buffer)slice).position((int)start).limit((int)(start + count));
+                Channels.newChannel(body).write(slice);
+            } else {
+                transfer(file, entry.getOffset() + start, count, Channels.newChannel(body));
+            }
+        }
+    }
+
+    private static void transfer (File file, long position, long count, WritableByteChannel target)
+        throws IOException
+    {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long transferred = 0;
+            while (transferred < count) {
+                long sent = channel.transferTo(position + transferred, count - transferred, target);
+                if (sent <= 0) {
+                    throw new IOException("Unexpected end of file " + file);
+                }
+                transferred += sent;
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * @return True if an If-None-Match header lists the entity tag, or is {@code *}.
+     */
+    static boolean matches (String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parses a Range header holding a single range of bytes.
+     *
+     * @return The first and last (inclusive) bytes requested, an empty array if the range can't be satisfied, or null
+     * if the whole entity should be sent: when there is no header, or it isn't a single byte range.
+     */
+    static long[] range (String header, long length) {
+        if (header == null || !header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+            return null;
+        }
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+
+        try {
+            long first, last;
+            if (dash == 0) {
+                // A suffix: the last N bytes.
+                long suffix = Long.parseLong(spec.substring(1));
+                if (suffix == 0) {
+                    return new long[0];
+                }
+                first = Math.max(0, length - suffix);
+                last = length - 1;
+            } else {
+                first = Long.parseLong(spec.substring(0, dash));
+                last = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+                if (last < first) {
+                    return null;
+                }
+            }
+            return first >= length ? new long[0] : new long[] {first, Math.min(last, length - 1)};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static void sendStatus (HttpExchange exchange, int status) throws IOException {
+        exchange.sendResponseHeaders(status, -1);
+    }
+
+    private static String decode (String name) throws UnsupportedEncodingException {
+        return URLDecoder.decode(name.replace("+", "%2B"), "UTF-8");
+    }
+
+    private static final class Index {
+        private final long modified;
+        private final long length;
+        private final List<ITCEntry> entries;
+
+        private Index (long modified, long length, List<ITCEntry> entries) {
+            this.modified = modified;
+            this.length = length;
+            this.entries = entries;
+        }
+    }
+}
@@ -0,0 +1,407 @@
+/*
+  Copyright 2013 Peter Rebholz
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package computersarehard.itc;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import javax.imageio.ImageIO;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ARGBImageTest {
+    private static List<ITCImage> images;
+
+    @BeforeClass
+    public static void beforeAll () throws Exception {
+        ITCImageReader reader = new ITCImageReader(new FileInputStream("src/test/itc/argb-test.itc"));
+        try {
+            images = reader.readAll();
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testWriteToStream () throws Exception {
+        for (ITCImage image : images) {
+            ByteArrayOutputStream png = new ByteArrayOutputStream();
+            ((ARGBImage)image).writeToStream(png, Deflater.BEST_SPEED);
+            assertPixelsEqual(image, png.toByteArray());
+        }
+    }
+
+    @Test
+    public void testWriteUncompressed () throws Exception {
+        ITCImage image = images.get(2);
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        image.writeToStream(png);
+        assertTrue("Uncompressed data should need several IDAT chunks", png.size() > 4 * 64 * 1024);
+        assertPixelsEqual(image, png.toByteArray());
+    }
+
+    @Test
+    public void testFilters () throws Exception {
+        // The fixture's artwork is flat enough that filtering doesn't help, so use a photo-like gradient instead.
+        ARGBImage image = gradient(200, 150);
+        int unfiltered = 0;
+        for (PngOptions.Filter filter : PngOptions.Filter.values()) {
+            ByteArrayOutputStream png = new ByteArrayOutputStream();
+            image.writeToStream(png, PngOptions.DEFAULT.withCompressionLevel(Deflater.BEST_COMPRESSION)
+                .withFilter(filter));
+            assertPixelsEqual(image, png.toByteArray());
+
+            if (filter == PngOptions.Filter.NONE) {
+                unfiltered = png.size();
+            } else if (filter == PngOptions.Filter.ADAPTIVE) {
+                assertTrue("Adaptive filtering should beat no filtering", png.size() < unfiltered);
+            }
+        }
+    }
+
+    @Test
+    public void testWriteParallel () throws Exception {
+        ARGBImage image = gradient(300, 500);
+        for (PngOptions.Filter filter : new PngOptions.Filter[] {PngOptions.Filter.NONE, PngOptions.Filter.PAETH}) {
+            ByteArrayOutputStream png = new ByteArrayOutputStream();
+            image.writeToStream(png, PngOptions.DEFAULT.withCompressionLevel(Deflater.BEST_COMPRESSION)
+                .withFilter(filter).withParallelism(4));
+            assertPixelsEqual(image, png.toByteArray());
+
+            // Inflater verifies the combined Adler-32, which PNG decoders are free to ignore.
+            Inflater inflater = new Inflater();
+            inflater.setInput(idat(png.toByteArray()));
+            byte[] inflated = new byte[(300 * 4 + 1) * 500];
+            assertEquals("Every row should be inflated", inflated.length, inflater.inflate(inflated));
+            inflater.inflate(new byte[1]);
+            assertTrue("Stream should end with a valid checksum", inflater.finished());
+            inflater.end();
+        }
+    }
+
+    @Test
+    public void testInterlace () throws Exception {
+        PngOptions options = PngOptions.DEFAULT.withCompressionLevel(Deflater.BEST_SPEED).withInterlace(true)
+            .withFilter(PngOptions.Filter.ADAPTIVE);
+        // Small and odd sizes leave some of the seven passes empty.
+        ITCImage[] interlaced = new ITCImage[] {gradient(1, 1), gradient(3, 2), gradient(13, 7), gradient(200, 150),
+            images.get(1)};
+        for (ITCImage image : interlaced) {
+            ByteArrayOutputStream png = new ByteArrayOutputStream();
+            ((ARGBImage)image).writeToStream(png, options.withParallelism(4));
+            assertEquals("Header should mark the image as interlaced", 1, png.toByteArray()[28]);
+            assertPixelsEqual(image, png.toByteArray());
+        }
+
+        assertColorType(images.get(0), options.withColorReduction(true), PngColorMode.RGB);
+    }
+
+    @Test
+    public void testParallelThreads () throws Exception {
+        // The tests run with the common pool's parallelism set to 1 (see the surefire configuration), where
+        // CompletableFuture starts a new thread for each task given to the common pool. This image is ~60 blocks.
+        ARGBImage image = gradient(1400, 1400);
+        PngEncoder encoder = new PngEncoder(PngOptions.DEFAULT.withCompressionLevel(Deflater.BEST_SPEED)
+            .withParallelism(4));
+        try {
+            encoder.encode(image, new ByteArrayOutputStream());
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            long started = threads.getTotalStartedThreadCount();
+            encoder.encode(image, new ByteArrayOutputStream());
+            assertTrue("Blocks should run on pooled threads", threads.getTotalStartedThreadCount() - started <= 4);
+        } finally {
+            encoder.close();
+        }
+    }
+
+    @Test
+    public void testForCurrentThread () throws Exception {
+        PngOptions options = PngOptions.DEFAULT.withCompressionLevel(Deflater.BEST_SPEED);
+        PngEncoder encoder = PngEncoder.forCurrentThread(options);
+        assertSame("Thread's encoder should be reused", encoder, PngEncoder.forCurrentThread(options));
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        ((ARGBImage)images.get(0)).writeToStream(expected, options);
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        encoder.encode((ARGBImage)images.get(0), png);
+        assertArrayEquals("Thread's encoder should match a new encoder", expected.toByteArray(), png.toByteArray());
+
+        assertTrue("Different options should replace the encoder",
+            encoder != PngEncoder.forCurrentThread(options.withCompressionLevel(Deflater.BEST_COMPRESSION)));
+        try {
+            encoder.encode((ARGBImage)images.get(0), new ByteArrayOutputStream());
+            fail("Replaced encoder should be closed");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+        // A closed encoder is replaced rather than handed out again.
+        PngEncoder.forCurrentThread(options).close();
+        PngEncoder.forCurrentThread(options).encode((ARGBImage)images.get(0), new ByteArrayOutputStream());
+        PngEncoder.forCurrentThread(options).close();
+    }
+
+    @Test
+    public void testEncoderReuse () throws Exception {
+        PngOptions options = PngOptions.DEFAULT.withCompressionLevel(Deflater.BEST_SPEED)
+            .withStrategy(Deflater.FILTERED).withFilter(PngOptions.Filter.PAETH).withChunkSize(1000);
+        PngEncoder encoder = new PngEncoder(options);
+        try {
+            for (int pass = 0; pass < 2; pass++) {
+                for (ITCImage image : images) {
+                    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+                    ((ARGBImage)image).writeToStream(expected, options);
+                    ByteArrayOutputStream png = new ByteArrayOutputStream();
+                    encoder.encode((ARGBImage)image, png);
+                    assertArrayEquals("Reused encoder should produce the same file", expected.toByteArray(),
+                        png.toByteArray());
+                    assertPixelsEqual(image, png.toByteArray());
+                }
+            }
+
+            // Parallel blocks return their deflaters to the encoder for the next image.
+            PngEncoder parallel = new PngEncoder(options.withParallelism(2));
+            try {
+                for (int pass = 0; pass < 2; pass++) {
+                    ByteArrayOutputStream png = new ByteArrayOutputStream();
+                    parallel.encode(gradient(300, 500), png);
+                    assertPixelsEqual(gradient(300, 500), png.toByteArray());
+                }
+            } finally {
+                parallel.close();
+            }
+        } finally {
+            encoder.close();
+        }
+
+        try {
+            encoder.encode((ARGBImage)images.get(0), new ByteArrayOutputStream());
+            fail("Closed encoder should not be usable");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testMetrics () throws Exception {
+        for (int parallelism : new int[] {1, 4}) {
+            final long[] measured = new long[6];
+            ITCMetricsListener listener = new ITCMetricsListener() {
+                @Override
+                public void imageEncoded (long width, long height, long conversionNanos, long deflateNanos,
+                    long crcNanos, long outputBytes)
+                {
+                    measured[0] = width;
+                    measured[1] = height;
+                    measured[2] = conversionNanos;
+                    measured[3] = deflateNanos;
+                    measured[4] = crcNanos;
+                    measured[5] = outputBytes;
+                }
+            };
+            ByteArrayOutputStream png = new ByteArrayOutputStream();
+            gradient(300, 500).writeToStream(png, PngOptions.DEFAULT.withCompressionLevel(Deflater.BEST_SPEED)
+                .withParallelism(parallelism), listener);
+
+            assertEquals("Width should be reported", 300, measured[0]);
+            assertEquals("Height should be reported", 500, measured[1]);
+            assertTrue("Each stage should be timed", measured[2] > 0 && measured[3] > 0 && measured[4] > 0);
+            assertEquals("Output size should be reported", png.size(), measured[5]);
+        }
+    }
+
+    @Test
+    public void testCombineAdler32 () {
+        byte[] data = new byte[100000];
+        new java.util.Random(1).nextBytes(data);
+        Adler32 whole = new Adler32(), first = new Adler32(), second = new Adler32();
+        whole.update(data);
+        first.update(data, 0, 12345);
+        second.update(data, 12345, data.length - 12345);
+        assertEquals("Combined checksum should match", whole.getValue(),
+            PngEncoder.combineAdler32(first.getValue(), second.getValue(), data.length - 12345));
+    }
+
+    @Test
+    public void testColorReduction () throws Exception {
+        PngOptions options = PngOptions.DEFAULT.withCompressionLevel(Deflater.BEST_COMPRESSION)
+            .withColorReduction(true);
+        ARGBImage rgb = gradient(120, 80);
+        byte[] gray = new byte[64 * 64 * 4];
+        byte[] grayAlpha = new byte[64 * 64 * 4];
+        byte[] palette = new byte[64 * 64 * 4];
+        for (int i = 0; i < gray.length; i += 4) {
+            int pixel = i / 4;
+            byte value = (byte)(pixel * 7);
+            gray[i] = (byte)0xFF;
+            gray[i + 1] = gray[i + 2] = gray[i + 3] = value;
+            grayAlpha[i] = (byte)(pixel / 16);
+            grayAlpha[i + 1] = grayAlpha[i + 2] = grayAlpha[i + 3] = value;
+            palette[i] = (byte)(pixel % 3 == 0 ? 0x80 : 0xFF);
+            palette[i + 1] = (byte)(pixel % 5 * 50);
+            palette[i + 2] = (byte)(pixel % 7 * 30);
+            palette[i + 3] = (byte)(pixel % 3 * 90);
+        }
+
+        assertColorType(rgb, options, PngColorMode.RGB);
+        assertColorType(image(64, 64, gray), options, PngColorMode.GRAY);
+        assertColorType(image(64, 64, grayAlpha), options, PngColorMode.GRAY_ALPHA);
+        assertColorType(image(64, 64, palette), options, PngColorMode.PALETTE);
+        assertColorType(image(64, 64, palette), options.withParallelism(4), PngColorMode.PALETTE);
+        assertColorType(images.get(0), options.withColorReduction(false), PngColorMode.RGBA);
+    }
+
+    @Test
+    public void testBufferedImages () throws Exception {
+        ARGBImage image = (ARGBImage)ITCImage.Format.ARGB.newImage(images.get(0).getWidth(),
+            images.get(0).getHeight(), images.get(0).getData().clone());
+
+        BufferedImage copy = image.toBufferedImage();
+        assertEquals("Copy should be a standard type", BufferedImage.TYPE_INT_ARGB, copy.getType());
+        assertPixelsEqual(image, copy);
+
+        BufferedImage view = image.asBufferedImage();
+        assertPixelsEqual(image, view);
+        view.setRGB(3, 5, 0x12345678);
+        assertEquals("View should share the image's data", 0x12345678, image.getBuffer().getInt((5 * 128 + 3) * 4));
+    }
+
+    @Test
+    public void testThumbnails () throws Exception {
+        List<ARGBImage> thumbnails = gradient(400, 200).thumbnails(64, 128, 600);
+        assertEquals("Every size should be produced", 3, thumbnails.size());
+        assertEquals("Longer side should match the size", 64, thumbnails.get(0).getWidth());
+        assertEquals("Aspect ratio should be kept", 32, thumbnails.get(0).getHeight());
+        assertEquals("Longer side should match the size", 128, thumbnails.get(1).getWidth());
+        assertEquals("Larger sizes should not upscale", 400, thumbnails.get(2).getWidth());
+        assertEquals("Larger sizes should not upscale", 200, thumbnails.get(2).getHeight());
+        for (ARGBImage thumbnail : thumbnails) {
+            ByteArrayOutputStream png = new ByteArrayOutputStream();
+            thumbnail.writeToStream(png);
+            assertPixelsEqual(thumbnail, png.toByteArray());
+        }
+
+        // Each 2x2 block is averaged, with colors weighted by alpha.
+        ARGBImage image = (ARGBImage)ITCImage.Format.ARGB.newImage(2, 2, new byte[] {
+            (byte)0xFF, 100, 0, 0,   (byte)0xFF, 0, 100, 0,
+            (byte)0xFF, 0, 0, 100,   0, (byte)0xFF, (byte)0xFF, (byte)0xFF
+        });
+        assertEquals("Block should be averaged", 0xBF212121, image.thumbnails(1).get(0).getBuffer().getInt(0));
+    }
+
+    /**
+     * Encodes the image, checks the color type recorded in the PNG's header and that the pixels survive the trip.
+     */
+    private static void assertColorType (ITCImage image, PngOptions options, byte colorType) throws Exception {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ((ARGBImage)image).writeToStream(png, options);
+        assertEquals("Color type should be reduced", colorType, png.toByteArray()[25]);
+        assertPixelsEqual(image, png.toByteArray());
+    }
+
+    private static ARGBImage image (int width, int height, byte[] data) {
+        return (ARGBImage)ITCImage.Format.ARGB.newImage(width, height, data);
+    }
+
+    /**
+     * Returns the contents of all of a PNG file's IDAT chunks joined together.
+     */
+    static byte[] idat (byte[] png) {
+        ByteBuffer buffer = ByteBuffer.wrap(png);
+        buffer.position(8);
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        while (buffer.hasRemaining()) {
+            int length = buffer.getInt();
+            byte[] name = new byte[4];
+            buffer.get(name);
+            if ("IDAT".equals(new String(name))) {
+                data.write(png, buffer.position(), length);
+            }
+            buffer.position(buffer.position() + length + 4);
+        }
+        return data.toByteArray();
+    }
+
+    /**
+     * Creates an opaque image of smooth gradients with a little noise.
+     */
+    static ARGBImage gradient (int width, int height) {
+        java.util.Random random = new java.util.Random(width * 31 + height);
+        byte[] data = new byte[width * height * 4];
+        for (int y = 0, i = 0; y < height; y++) {
+            for (int x = 0; x < width; x++, i += 4) {
+                data[i] = (byte)0xFF;
+                data[i + 1] = (byte)(x * 255 / width + random.nextInt(4));
+                data[i + 2] = (byte)(y * 255 / height + random.nextInt(4));
+                data[i + 3] = (byte)((x + y) * 127 / (width + height) + random.nextInt(4));
+            }
+        }
+        return (ARGBImage)ITCImage.Format.ARGB.newImage(width, height, data);
+    }
+
+    /**
+     * Decodes the PNG with ImageIO and checks that every pixel matches the image's ARGB data.
+     */
+    static void assertPixelsEqual (ITCImage image, byte[] png) throws Exception {
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(png));
+        assertNotNull("PNG should be readable", decoded);
+        assertPixelsEqual(image, decoded);
+    }
+
+    /**
+     * Checks that every pixel of the {@link BufferedImage} matches the image's ARGB data.
+     */
+    static void assertPixelsEqual (ITCImage image, BufferedImage decoded) {
+        assertEquals("Width should match", image.getWidth(), decoded.getWidth());
+        assertEquals("Height should match", image.getHeight(), decoded.getHeight());
+
+        ByteBuffer data = image.getBuffer();
+        for (int y = 0; y < decoded.getHeight(); y++) {
+            for (int x = 0; x < decoded.getWidth(); x++) {
+                int expected = data.getInt((y * decoded.getWidth() + x) * 4);
+                int actual = argb(decoded, x, y);
+                if (expected != actual) {
+                    fail(String.format("Pixel (%d, %d) should be %08x but was %08x", x, y, expected, actual));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a pixel's ARGB value. {@link BufferedImage#getRGB(int, int)} converts grayscale images from a linear
+     * color space, so their samples are read directly.
+     */
+    private static int argb (BufferedImage image, int x, int y) {
+        if (image.getColorModel().getColorSpace().getType() != ColorSpace.TYPE_GRAY) {
+            return image.getRGB(x, y);
+        }
+        Raster raster = image.getRaster();
+        int gray = raster.getSample(x, y, 0);
+        int alpha = raster.getNumBands() > 1 ? raster.getSample(x, y, 1) : 0xFF;
+        return alpha << 24 | gray << 16 | gray << 8 | gray;
+    }
+}
@@ -0,0 +1,273 @@
+/*
+  Copyright 2013 Peter Rebholz
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package computersarehard.itc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class DiskImageCacheTest {
+    private static final File ITC_FILE = new File("src/test/itc/argb-test.itc");
+    private static final PngOptions OPTIONS = PngOptions.DEFAULT.withCompressionLevel(Deflater.BEST_SPEED);
+
+    private File directory;
+    private List<ITCEntry> entries;
+
+    @Before
+    public void before () throws Exception {
+        directory = Files.createTempDirectory("itc-cache").toFile();
+        ITCImageReader reader = new ITCImageReader(new FileInputStream(ITC_FILE));
+        try {
+            entries = reader.index();
+        } finally {
+            reader.close();
+        }
+    }
+
+    @After
+    public void after () {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testSurvivesRestart () throws Exception {
+        byte[][] expected = new byte[entries.size()][];
+        DiskImageCache cache = new DiskImageCache(directory, 10L * 1024 * 1024);
+        try {
+            for (int i = 0; i < entries.size(); i++) {
+                expected[i] = bytes(cache.get(ITC_FILE, entries.get(i), OPTIONS));
+                ByteArrayOutputStream direct = new ByteArrayOutputStream();
+                ITCImage image = new MappedITCImageReader(ITC_FILE).readAll().get(i);
+                ((ARGBImage)image).writeToStream(direct, OPTIONS);
+                assertArrayEquals("Cached image should match encoding it directly", direct.toByteArray(),
+                    expected[i]);
+            }
+            assertEquals("Every image should miss", 3, cache.getMissCount());
+        } finally {
+            cache.close();
+        }
+
+        cache = new DiskImageCache(directory, 10L * 1024 * 1024);
+        try {
+            assertEquals("Index should be reloaded", 3, cache.getEntryCount());
+            for (int i = 0; i < entries.size(); i++) {
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                cache.writeTo(ITC_FILE, entries.get(i), OPTIONS, output);
+                assertArrayEquals("Reopened cache should return the same image", expected[i], output.toByteArray());
+            }
+            assertEquals("Every image should hit after a restart", 3, cache.getHitCount());
+            assertEquals("Nothing should be encoded again", 0, cache.getMissCount());
+
+            cache.get(ITC_FILE, entries.get(0), OPTIONS.withCompressionLevel(Deflater.BEST_COMPRESSION));
+            assertEquals("Different options should be stored separately", 4, cache.getEntryCount());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testCorruption () throws Exception {
+        DiskImageCache cache = new DiskImageCache(directory, 10L * 1024 * 1024);
+        byte[] expected = bytes(cache.get(ITC_FILE, entries.get(0), OPTIONS));
+        cache.close();
+
+        // Damage the stored image; the CRC check should catch it and the image should be encoded again.
+        RandomAccessFile segment = new RandomAccessFile(new File(directory, "segment-00000000"), "rw");
+        try {
+            segment.seek(100);
+            int value = segment.read();
+            segment.seek(100);
+            segment.write(value ^ 0xFF);
+        } finally {
+            segment.close();
+        }
+
+        cache = new DiskImageCache(directory, 10L * 1024 * 1024);
+        try {
+            assertArrayEquals("Damaged image should be encoded again", expected,
+                bytes(cache.get(ITC_FILE, entries.get(0), OPTIONS)));
+            assertEquals("Damaged image should miss", 1, cache.getMissCount());
+        } finally {
+            cache.close();
+        }
+
+        // An unreadable index starts the cache afresh.
+        Files.write(new File(directory, "index").toPath(), new byte[] {1, 2, 3});
+        cache = new DiskImageCache(directory, 10L * 1024 * 1024);
+        try {
+            assertEquals("Unreadable index should be replaced", 0, cache.getEntryCount());
+            assertEquals("Old segments should be deleted", 0, cache.getSize());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testDamagedLength () throws Exception {
+        DiskImageCache cache = new DiskImageCache(directory, 10L * 1024 * 1024);
+        try {
+            byte[] expected = bytes(cache.get(ITC_FILE, entries.get(0), OPTIONS));
+
+            // The index is memory mapped, so damage made through the file is seen by the open cache.
+            setStoredLength(-100);
+            assertArrayEquals("Negative length should be a miss", expected,
+                bytes(cache.get(ITC_FILE, entries.get(0), OPTIONS)));
+            setStoredLength(Integer.MAX_VALUE);
+            assertArrayEquals("Huge length should be a miss", expected,
+                bytes(cache.get(ITC_FILE, entries.get(0), OPTIONS)));
+            assertEquals("Damaged slots should miss", 3, cache.getMissCount());
+        } finally {
+            cache.close();
+        }
+
+        setStoredLength(-100);
+        cache = new DiskImageCache(directory, 10L * 1024 * 1024);
+        try {
+            assertEquals("Damaged slot should be dropped when the index is loaded", 0, cache.getEntryCount());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testKeyHash () throws Exception {
+        EncodedImageKey key = new EncodedImageKey(ITC_FILE, entries.get(0), OPTIONS);
+        assertEquals("Equal keys should hash the same", key.persistentHash(),
+            new EncodedImageKey(ITC_FILE, entries.get(0), OPTIONS).persistentHash());
+        for (PngOptions options : new PngOptions[] {OPTIONS.withFilter(PngOptions.Filter.SUB),
+            OPTIONS.withChunkSize(1000), OPTIONS.withParallelism(2), OPTIONS.withColorReduction(true),
+            OPTIONS.withInterlace(true), OPTIONS.withStrategy(Deflater.FILTERED)})
+        {
+            assertTrue("Options should change the hash: " + options,
+                key.persistentHash() != new EncodedImageKey(ITC_FILE, entries.get(0), options).persistentHash());
+        }
+    }
+
+    @Test
+    public void testEviction () throws Exception {
+        // The cache holds a single segment, just large enough for the largest image.
+        int largest = 0;
+        DiskImageCache sizing = new DiskImageCache(new File(directory, "sizing"), Long.MAX_VALUE);
+        try {
+            for (ITCEntry entry : entries) {
+                largest = Math.max(largest, sizing.get(ITC_FILE, entry, OPTIONS).remaining());
+            }
+        } finally {
+            sizing.close();
+            for (File file : new File(directory, "sizing").listFiles()) {
+                file.delete();
+            }
+            new File(directory, "sizing").delete();
+        }
+
+        DiskImageCache cache = new DiskImageCache(directory, largest + 16, largest + 16, 16);
+        try {
+            for (ITCEntry entry : entries) {
+                cache.get(ITC_FILE, entry, OPTIONS);
+            }
+            assertEquals("Oldest segment should be evicted", 1, cache.getEntryCount());
+            assertTrue("Size should stay within the limit", cache.getSize() <= largest + 16);
+            assertFalse("Evicted segment should be deleted", new File(directory, "segment-00000000").exists());
+
+            cache.get(ITC_FILE, entries.get(2), OPTIONS);
+            assertEquals("Newest image should still be cached", 1, cache.getHitCount());
+            cache.get(ITC_FILE, entries.get(0), OPTIONS);
+            assertEquals("Evicted image should be encoded again", 4, cache.getMissCount());
+        } finally {
+            cache.close();
+        }
+    }
+
+    @Test
+    public void testSingleInstance () throws Exception {
+        DiskImageCache cache = new DiskImageCache(directory, 10L * 1024 * 1024);
+        try {
+            new DiskImageCache(directory, 10L * 1024 * 1024);
+            fail("A directory that is already open should be rejected");
+        } catch (IOException e) {
+            // Expected.
+        } finally {
+            cache.close();
+        }
+
+        cache = new DiskImageCache(directory, 10L * 1024 * 1024);
+        cache.close();
+    }
+
+    @Test
+    public void testInterruptedRead () throws Exception {
+        DiskImageCache cache = new DiskImageCache(directory, 10L * 1024 * 1024);
+        try {
+            byte[] expected = bytes(cache.get(ITC_FILE, entries.get(0), OPTIONS));
+
+            // An interrupted read closes the segment's channel, which must not break the cache for later lookups.
+            Thread.currentThread().interrupt();
+            try {
+                cache.get(ITC_FILE, entries.get(0), OPTIONS);
+            } catch (IOException e) {
+                // Expected, as the read was interrupted.
+            } finally {
+                Thread.interrupted();
+            }
+
+            assertArrayEquals("Image should still be readable", expected,
+                bytes(cache.get(ITC_FILE, entries.get(0), OPTIONS)));
+            assertEquals("Image should still be cached", 1, cache.getMissCount());
+            cache.get(ITC_FILE, entries.get(1), OPTIONS);
+            assertEquals("New images should still be stored", 2, cache.getEntryCount());
+        } finally {
+            cache.close();
+        }
+    }
+
+    /**
+     * Overwrites the length recorded in the index's only occupied slot.
+     */
+    private void setStoredLength (int length) throws IOException {
+        RandomAccessFile index = new RandomAccessFile(new File(directory, "index"), "rw");
+        try {
+            for (long position = 32; position < index.length(); position += 24) {
+                index.seek(position);
+                if (index.readLong() != 0) {
+                    index.seek(position + 16);
+                    index.writeInt(length);
+                }
+            }
+        } finally {
+            index.close();
+        }
+    }
+
+    private static byte[] bytes (ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+  Copyright 2013 Peter Rebholz
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package computersarehard.itc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class EncodedImageCacheTest {
+    private static final File ITC_FILE = new File("src/test/itc/argb-test.itc");
+    private static final PngOptions OPTIONS = PngOptions.DEFAULT.withCompressionLevel(Deflater.BEST_SPEED);
+
+    @Test
+    public void testCache () throws Exception {
+        for (boolean direct : new boolean[] {false, true}) {
+            EncodedImageCache cache = new EncodedImageCache(10L * 1024 * 1024, direct);
+            List<ITCEntry> entries = index(ITC_FILE);
+            List<ITCImage> images = new MappedITCImageReader(ITC_FILE).readAll();
+            for (int pass = 0; pass < 2; pass++) {
+                for (int i = 0; i < entries.size(); i++) {
+                    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+                    ((ARGBImage)images.get(i)).writeToStream(expected, OPTIONS);
+                    ByteArrayOutputStream cached = new ByteArrayOutputStream();
+                    cache.writeTo(ITC_FILE, entries.get(i), OPTIONS, cached);
+                    assertArrayEquals("Cached image should match encoding it directly", expected.toByteArray(),
+                        cached.toByteArray());
+                }
+            }
+            assertEquals("First pass should miss", 3, cache.getMissCount());
+            assertEquals("Second pass should hit", 3, cache.getHitCount());
+            assertEquals("Every image should be held", 3, cache.getEntryCount());
+            assertEquals("Buffers should match the storage mode", direct,
+                cache.get(ITC_FILE, entries.get(0), OPTIONS).isDirect());
+
+            cache.get(ITC_FILE, entries.get(0), OPTIONS.withCompressionLevel(Deflater.BEST_COMPRESSION));
+            assertEquals("Different options should be encoded separately", 4, cache.getEntryCount());
+        }
+    }
+
+    @Test
+    public void testEncoderPool () throws Exception {
+        EncodedImageCache cache = new EncodedImageCache(10L * 1024 * 1024);
+        PngEncoderPool encoders = new PngEncoderPool(OPTIONS, 1);
+        try {
+            List<ITCEntry> entries = index(ITC_FILE);
+            for (ITCEntry entry : entries) {
+                assertEquals("Pooled encoder should match the thread's encoder",
+                    new EncodedImageCache(10L * 1024 * 1024).get(ITC_FILE, entry, OPTIONS),
+                    cache.get(ITC_FILE, entry, encoders));
+            }
+            cache.get(ITC_FILE, entries.get(0), OPTIONS);
+            assertEquals("Pooled and unpooled lookups should share entries", 1, cache.getHitCount());
+
+            PngEncoder encoder = encoders.acquire();
+            encoders.release(encoder);
+            assertSame("Released encoder should be reused", encoder, encoders.acquire());
+            encoders.release(encoder);
+        } finally {
+            encoders.close();
+        }
+    }
+
+    @Test
+    public void testEviction () throws Exception {
+        List<ITCEntry> entries = index(ITC_FILE);
+        EncodedImageCache unbounded = new EncodedImageCache(Long.MAX_VALUE);
+        long first = unbounded.get(ITC_FILE, entries.get(0), OPTIONS).remaining();
+        long second = unbounded.get(ITC_FILE, entries.get(1), OPTIONS).remaining();
+        long third = unbounded.get(ITC_FILE, entries.get(2), OPTIONS).remaining();
+
+        EncodedImageCache cache = new EncodedImageCache(first + third + second / 2);
+        cache.get(ITC_FILE, entries.get(0), OPTIONS);
+        cache.get(ITC_FILE, entries.get(1), OPTIONS);
+        // Touching the first image makes the second the least recently used.
+        cache.get(ITC_FILE, entries.get(0), OPTIONS);
+        cache.get(ITC_FILE, entries.get(2), OPTIONS);
+        assertEquals("Least recently used image should be evicted", 2, cache.getEntryCount());
+        assertEquals("Size should count the remaining images", first + third, cache.getSize());
+
+        cache.get(ITC_FILE, entries.get(0), OPTIONS);
+        assertEquals("Recently used image should be kept", 2, cache.getHitCount());
+
+        EncodedImageCache tiny = new EncodedImageCache(first - 1);
+        assertEquals("Oversized images should still be returned", first,
+            tiny.get(ITC_FILE, entries.get(0), OPTIONS).remaining());
+        assertEquals("Oversized images should not be kept", 0, tiny.getEntryCount());
+    }
+
+    @Test
+    public void testModifiedFile () throws Exception {
+        File copy = File.createTempFile("cache", ".itc");
+        try {
+            Files.copy(ITC_FILE.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            ITCEntry entry = index(copy).get(0);
+            EncodedImageCache cache = new EncodedImageCache(10L * 1024 * 1024);
+            cache.get(copy, entry, OPTIONS);
+            assertTrue("File time should be changeable", copy.setLastModified(copy.lastModified() - 10000));
+            cache.get(copy, entry, OPTIONS);
+            assertEquals("Modified file should be read again", 2, cache.getMissCount());
+        } finally {
+            copy.delete();
+        }
+    }
+
+    private static List<ITCEntry> index (File file) throws Exception {
+        ITCImageReader reader = new ITCImageReader(new FileInputStream(file));
+        try {
+            return reader.index();
+        } finally {
+            reader.close();
+        }
+    }
+}
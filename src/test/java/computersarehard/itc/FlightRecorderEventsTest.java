@@ -0,0 +1,84 @@
+/*
+  Copyright 2013 Peter Rebholz
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package computersarehard.itc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class FlightRecorderEventsTest {
+    @Test
+    public void testEvents () throws Exception {
+        File file = new File("src/test/itc/argb-test.itc");
+        Path dump = Files.createTempFile("itc", ".jfr");
+        Recording recording = new Recording();
+        try {
+            recording.enable("computersarehard.itc.ReadImage").withThreshold(Duration.ZERO);
+            recording.enable("computersarehard.itc.EncodePng").withThreshold(Duration.ZERO);
+            recording.start();
+
+            ITCImageReader reader = new MappedITCImageReader(file);
+            try {
+                ARGBImage image = (ARGBImage)reader.readAll().get(0);
+                image.writeToStream(new ByteArrayOutputStream(),
+                    PngOptions.DEFAULT.withCompressionLevel(Deflater.BEST_SPEED));
+            } finally {
+                reader.close();
+            }
+
+            recording.stop();
+            recording.dump(dump);
+
+            List<RecordedEvent> events = RecordingFile.readAllEvents(dump);
+            int reads = 0;
+            int encodes = 0;
+            for (RecordedEvent event : events) {
+                String name = event.getEventType().getName();
+                if ("computersarehard.itc.ReadImage".equals(name)) {
+                    assertEquals("Source should be the file", file.getPath(), event.getString("source"));
+                    assertEquals("Format should be recorded", "ARGB", event.getString("format"));
+                    assertTrue("Frames should be counted", event.getInt("frames") > 0);
+                    assertEquals("Size should match the dimensions",
+                        event.getLong("width") * event.getLong("height") * 4, event.getLong("bytes"));
+                    reads++;
+                } else if ("computersarehard.itc.EncodePng".equals(name)) {
+                    assertEquals("Width should be recorded", 128, event.getLong("width"));
+                    assertEquals("Compression level should be recorded", Deflater.BEST_SPEED,
+                        event.getInt("compressionLevel"));
+                    assertEquals("Raw size should be recorded", 128 * 128 * 4, event.getLong("rawBytes"));
+                    assertTrue("Compressed size should be recorded", event.getLong("compressedBytes") > 0);
+                    encodes++;
+                }
+            }
+            assertEquals("Every image read should be recorded", 3, reads);
+            assertEquals("The encode should be recorded", 1, encodes);
+        } finally {
+            recording.close();
+            Files.deleteIfExists(dump);
+        }
+    }
+}
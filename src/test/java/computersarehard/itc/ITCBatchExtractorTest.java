@@ -0,0 +1,49 @@
+/*
+  Copyright 2013 Peter Rebholz
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package computersarehard.itc;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ITCBatchExtractorTest {
+    @Test
+    public void testExtractDirectory () throws Exception {
+        final AtomicInteger files = new AtomicInteger();
+        final AtomicInteger images = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+
+        new ITCBatchExtractor(2).extract(new File("src/test"), new ITCBatchExtractor.Callback() {
+            @Override
+            public void onImages (File file, List<ITCImage> read) {
+                files.incrementAndGet();
+                images.addAndGet(read.size());
+            }
+
+            @Override
+            public void onFailure (File file, Exception e) {
+                failures.incrementAndGet();
+            }
+        });
+
+        assertEquals("Only the .itc fixture should be read", 1, files.get());
+        assertEquals("The fixture should have 3 images", 3, images.get());
+        assertEquals("Nothing should fail", 0, failures.get());
+    }
+}
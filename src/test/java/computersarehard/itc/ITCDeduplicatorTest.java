@@ -0,0 +1,102 @@
+/*
+  Copyright 2013 Peter Rebholz
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package computersarehard.itc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ITCDeduplicatorTest {
+    private static final File ITC_FILE = new File("src/test/itc/argb-test.itc");
+
+    @Test
+    public void testDeduplicate () throws Exception {
+        ITCDeduplicator deduplicator = new ITCDeduplicator();
+        List<ITCImage> first = deduplicator.readAll(new MappedITCImageReader(ITC_FILE));
+        List<ITCImage> second = deduplicator.readAll(new ITCImageReader(new FileInputStream(ITC_FILE)));
+
+        assertEquals("Every image should be returned", 3, second.size());
+        for (int i = 0; i < first.size(); i++) {
+            assertSame("Repeated image should be the canonical instance", first.get(i), second.get(i));
+        }
+        assertEquals("Each distinct image should be counted once", 3, deduplicator.getUniqueCount());
+        assertEquals("Every image in the second file should be a duplicate", 3, deduplicator.getDuplicateCount());
+
+        List<ITCImage> lazy = deduplicator.readAll(new LazyITCImageReader(ITC_FILE));
+        for (int i = 0; i < first.size(); i++) {
+            assertSame("Lazily read image should be the canonical instance", first.get(i), lazy.get(i));
+        }
+        assertEquals("Every lazily read image should be a duplicate", 6, deduplicator.getDuplicateCount());
+
+        // Same size and format but different data.
+        byte[] data = first.get(0).getData().clone();
+        data[100] ^= 1;
+        ITCImage changed = ITCImage.Format.ARGB.newImage(128, 128, data);
+        assertSame("Different data should not be merged", changed, deduplicator.deduplicate(changed));
+        assertEquals("Changed image should be new", 4, deduplicator.getUniqueCount());
+
+        deduplicator.clear();
+        assertEquals("Clearing should forget every image", 0, deduplicator.getUniqueCount());
+    }
+
+    @Test
+    public void testPayloadHash () throws Exception {
+        ITCImageReader stream = new ITCImageReader(new FileInputStream(ITC_FILE));
+        stream.setHashingPayloads(true);
+        List<ITCImage> hashedWhileRead = stream.readAll();
+        stream.close();
+        List<ITCImage> lazy = new LazyITCImageReader(ITC_FILE).readAll();
+
+        assertEquals(3, hashedWhileRead.size());
+        for (int i = 0; i < lazy.size(); i++) {
+            long expected = XXHash64.hash(lazy.get(i).getBuffer(), 0);
+            assertEquals("Hash computed while reading should match", expected,
+                ITCDeduplicator.hash(hashedWhileRead.get(i)));
+            assertEquals("Hash streamed from the file should match", expected,
+                ITCDeduplicator.hash(new LazyITCImageReader(ITC_FILE).readAll().get(i)));
+        }
+    }
+
+    @Test
+    public void testHash () {
+        // Reference values from the xxHash implementation.
+        assertEquals("Empty input", 0xEF46DB3751D8E999L, XXHash64.hash(ByteBuffer.allocate(0), 0));
+        assertEquals("Short input", 0x44BC2CF5AD770999L, XXHash64.hash(ascii("abc"), 0));
+        assertEquals("Input longer than a stripe", 0xFBCEA83C8A378BF1L,
+            XXHash64.hash(ascii("Nobody inspects the spammish repetition"), 0));
+
+        byte[] data = new byte[1000];
+        new java.util.Random(7).nextBytes(data);
+        long whole = XXHash64.hash(ByteBuffer.wrap(data), 42);
+        for (int split : new int[] {1, 7, 31, 32, 33, 500}) {
+            XXHash64 hash = new XXHash64(42);
+            for (int offset = 0; offset < data.length; offset += split) {
+                hash.update(data, offset, Math.min(split, data.length - offset));
+            }
+            assertEquals("Streaming should match hashing at once", whole, hash.getValue());
+        }
+        assertTrue("Seed should change the hash", whole != XXHash64.hash(ByteBuffer.wrap(data), 0));
+    }
+
+    private static ByteBuffer ascii (String value) {
+        return ByteBuffer.wrap(value.getBytes(StandardCharsets.US_ASCII));
+    }
+}
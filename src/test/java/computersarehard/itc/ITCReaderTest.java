@@ -15,13 +15,18 @@
 */
 package computersarehard.itc;
 
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.File;
 import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.security.MessageDigest;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -33,6 +38,8 @@ public class ITCReaderTest {
         "5d586d843c17dabb2ad9533344e117ea",
         "d59ff916678641db0c8fee505b1a2124"
     };
+    private static final long[] ARGB_OFFSETS = new long[] {492, 66236, 328588};
+    private static final long[] ARGB_SIZES = new long[] {128, 256, 400};
     private static MessageDigest md5;
 
     @BeforeClass
@@ -59,6 +66,221 @@ public class ITCReaderTest {
         }
     }
 
+    @Test
+    public void testReadMappedARGB () throws Exception {
+        ITCImageReader reader = null;
+        try {
+            reader = new MappedITCImageReader(new File("src/test/itc/argb-test.itc"));
+            List<ITCImage> images = reader.readAll();
+
+            assertEquals("argb file should have 3 images", 3, images.size());
+            for (int i = 0; i < images.size(); i++) {
+                ITCImage image = images.get(i);
+                assertEquals("Each image should be ARGB", ITCImage.Format.ARGB, image.getFormat());
+                assertTrue("Data should not be copied onto the heap", image.getBuffer().isDirect());
+                assertEquals("Checksum should match", ARGB_MD5[i], md5sum(image.getData()));
+            }
+
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    @Test
+    public void testReadLazyARGB () throws Exception {
+        ITCImageReader reader = null;
+        List<ITCImage> images;
+        try {
+            reader = new LazyITCImageReader(new File("src/test/itc/argb-test.itc"), true);
+            images = reader.readAll();
+        } finally {
+            closeQuietly(reader);
+        }
+
+        assertEquals("argb file should have 3 images", 3, images.size());
+        for (int i = 0; i < images.size(); i++) {
+            ITCImage image = images.get(i);
+            assertEquals("Each image should be ARGB", ITCImage.Format.ARGB, image.getFormat());
+            assertEquals("Length should be known before loading", ARGB_SIZES[i] * ARGB_SIZES[i] * 4,
+                image.getDataLength());
+            assertEquals("Checksum should match", ARGB_MD5[i], md5sum(image.getData()));
+        }
+    }
+
+    @Test
+    public void testReadAllAsync () throws Exception {
+        List<ITCImage> images = AsyncITCImageReader.readAllAsync(
+            new File("src/test/itc/argb-test.itc").toPath()).get();
+
+        assertEquals("argb file should have 3 images", 3, images.size());
+        for (int i = 0; i < images.size(); i++) {
+            ITCImage image = images.get(i);
+            assertEquals("Each image should be ARGB", ITCImage.Format.ARGB, image.getFormat());
+            assertEquals("Checksum should match", ARGB_MD5[i], md5sum(image.getData()));
+        }
+    }
+
+    @Test
+    public void testStream () throws Exception {
+        ITCImageReader streamReader = null;
+        ITCImageReader mappedReader = null;
+        try {
+            streamReader = new ITCImageReader(new FileInputStream("src/test/itc/argb-test.itc"));
+            mappedReader = new MappedITCImageReader(new File("src/test/itc/argb-test.itc"));
+
+            assertArrayEquals("Sequential stream should contain every image in order", ARGB_MD5,
+                streamReader.stream().map(image -> md5(image.getData())).toArray());
+            assertArrayEquals("Parallel stream should contain every image in order", ARGB_MD5,
+                mappedReader.stream().parallel().map(image -> md5(image.getData())).toArray());
+
+        } finally {
+            closeQuietly(streamReader);
+            closeQuietly(mappedReader);
+        }
+    }
+
+    @Test
+    public void testReadPooled () throws Exception {
+        BufferPool pool = new BufferPool();
+        for (int pass = 0; pass < 2; pass++) {
+            ITCImageReader reader = null;
+            try {
+                reader = new ITCImageReader(new FileInputStream("src/test/itc/argb-test.itc"), pool);
+                List<ITCImage> images = reader.readAll();
+
+                assertEquals("argb file should have 3 images", 3, images.size());
+                for (int i = 0; i < images.size(); i++) {
+                    assertEquals("Checksum should match", ARGB_MD5[i], md5sum(images.get(i).getData()));
+                    images.get(i).release();
+                }
+                assertTrue("Released buffers should be retained", pool.getRetainedBytes() > 0);
+
+            } finally {
+                closeQuietly(reader);
+            }
+        }
+    }
+
+    @Test
+    public void testReadPayloadTo () throws Exception {
+        ITCImageReader reader = null;
+        try {
+            reader = new ITCImageReader(new FileInputStream("src/test/itc/argb-test.itc"));
+
+            for (int i = 0; i < ARGB_MD5.length; i++) {
+                ByteArrayOutputStream payload = new ByteArrayOutputStream();
+                ITCEntry entry = reader.readPayloadTo(payload);
+                assertEquals("Entry should describe the written image", ARGB_SIZES[i], entry.getWidth());
+                assertEquals("Checksum should match", ARGB_MD5[i], md5sum(payload.toByteArray()));
+            }
+            assertNull("No images should remain", reader.readPayloadTo(new ByteArrayOutputStream()));
+
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    @Test
+    public void testTransferTo () throws Exception {
+        // Relabel the first image as a PNG so it is passed through untouched.
+        byte[] itc = Files.readAllBytes(Paths.get("src/test/itc/argb-test.itc"));
+        int format = new String(itc, "ISO-8859-1").indexOf("ARGb");
+        System.arraycopy("PNGf".getBytes("US-ASCII"), 0, itc, format, 4);
+        File source = File.createTempFile("transfer", ".itc");
+        File target = File.createTempFile("transfer", ".png");
+        ITCImageReader reader = null;
+        FileOutputStream output = null;
+        try {
+            Files.write(source.toPath(), itc);
+            reader = new MappedITCImageReader(source);
+            ITCImage image = reader.readImage();
+            assertEquals("Image should be relabelled", ITCImage.Format.PNG, image.getFormat());
+
+            output = new FileOutputStream(target);
+            image.transferTo(output.getChannel());
+            output.close();
+            assertEquals("Checksum should match", ARGB_MD5[0], md5sum(Files.readAllBytes(target.toPath())));
+
+        } finally {
+            closeQuietly(reader);
+            closeQuietly(output);
+            source.delete();
+            target.delete();
+        }
+    }
+
+    @Test
+    public void testMetrics () throws Exception {
+        long fileLength = new File("src/test/itc/argb-test.itc").length();
+        for (boolean mapped : new boolean[] {false, true}) {
+            final Map<String, Integer> frames = new HashMap<String, Integer>();
+            final long[] counts = new long[4];
+            ITCImageReader reader = mapped ? new MappedITCImageReader(new File("src/test/itc/argb-test.itc"))
+                : new ITCImageReader(new FileInputStream("src/test/itc/argb-test.itc"));
+            try {
+                reader.setMetricsListener(new ITCMetricsListener() {
+                    @Override
+                    public void frameParsed (String type, long size) {
+                        frames.put(type, frames.containsKey(type) ? frames.get(type) + 1 : 1);
+                    }
+
+                    @Override
+                    public void bytesRead (long count) {
+                        counts[0] += count;
+                    }
+
+                    @Override
+                    public void bytesSkipped (long count) {
+                        counts[1] += count;
+                    }
+
+                    @Override
+                    public void payloadAllocated (int size) {
+                        counts[2] += size;
+                    }
+
+                    @Override
+                    public void itemParsed (ITCEntry entry, long nanos) {
+                        counts[3]++;
+                    }
+                });
+                reader.readAll();
+            } finally {
+                closeQuietly(reader);
+            }
+
+            assertEquals("Every item frame should be reported", Integer.valueOf(3), frames.get("item"));
+            assertEquals("Every item should be timed", 3, counts[3]);
+            assertEquals("Every byte should be read or skipped", fileLength, counts[0] + counts[1]);
+            long payloads = (128 * 128 + 256 * 256 + 400 * 400) * 4;
+            assertEquals("Only streamed payloads should be allocated", mapped ? 0 : payloads, counts[2]);
+            assertTrue("Streamed payloads should be read, mapped ones skipped",
+                mapped ? counts[1] >= payloads : counts[0] >= payloads);
+        }
+    }
+
+    @Test
+    public void testIndex () throws Exception {
+        ITCImageReader reader = null;
+        try {
+            reader = new ITCImageReader(new FileInputStream("src/test/itc/argb-test.itc"));
+            List<ITCEntry> entries = reader.index();
+
+            assertEquals("argb file should have 3 entries", 3, entries.size());
+            for (int i = 0; i < entries.size(); i++) {
+                ITCEntry entry = entries.get(i);
+                assertEquals("Each entry should be ARGB", ITCImage.Format.ARGB, entry.getFormat());
+                assertEquals("Offset should point at the payload", ARGB_OFFSETS[i], entry.getOffset());
+                assertEquals("Width should match", ARGB_SIZES[i], entry.getWidth());
+                assertEquals("Height should match", ARGB_SIZES[i], entry.getHeight());
+                assertEquals("Length should cover every pixel", ARGB_SIZES[i] * ARGB_SIZES[i] * 4, entry.getLength());
+            }
+
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
     private static String md5sum (byte[] data) {
         md5.reset();
         md5.update(data);
@@ -66,6 +288,15 @@ public class ITCReaderTest {
         return new BigInteger(1, md5.digest()).toString(16);
     }
 
+    // md5sum() shares one digest, so parallel streams need a digest per call.
+    private static String md5 (byte[] data) {
+        try {
+            return new BigInteger(1, MessageDigest.getInstance("MD5").digest(data)).toString(16);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     private static void closeQuietly (Closeable c) {
         if (c == null) {
             return;
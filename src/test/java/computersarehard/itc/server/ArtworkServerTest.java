@@ -0,0 +1,161 @@
+/*
+  Copyright 2013 Peter Rebholz
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+     http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+*/
+package computersarehard.itc.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import computersarehard.itc.ARGBImage;
+import computersarehard.itc.ITCImageReader;
+import computersarehard.itc.MappedITCImageReader;
+
+public class ArtworkServerTest {
+    private static File root;
+    private static ArtworkServer server;
+    private static byte[] png;
+
+    @BeforeClass
+    public static void beforeAll () throws Exception {
+        root = Files.createTempDirectory("artwork").toFile();
+        File albums = new File(root, "albums");
+        albums.mkdir();
+        byte[] itc = Files.readAllBytes(Paths.get("src/test/itc/argb-test.itc"));
+        Files.write(new File(albums, "argb.itc").toPath(), itc);
+
+        // Relabel the first image as a PNG so it is passed through untouched.
+        int format = new String(itc, "ISO-8859-1").indexOf("ARGb");
+        System.arraycopy("PNGf".getBytes("US-ASCII"), 0, itc, format, 4);
+        Files.write(new File(root, "png.itc").toPath(), itc);
+
+        ITCImageReader reader = new MappedITCImageReader(new File(root, "albums/argb.itc"));
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            ((ARGBImage)reader.readAll().get(1)).writeToStream(output, ArtworkServer.DEFAULT_OPTIONS);
+            png = output.toByteArray();
+        } finally {
+            reader.close();
+        }
+
+        server = new ArtworkServer(root, new InetSocketAddress("127.0.0.1", 0));
+        server.start();
+    }
+
+    @AfterClass
+    public static void afterAll () {
+        server.stop(0);
+        new File(root, "albums/argb.itc").delete();
+        new File(root, "albums").delete();
+        new File(root, "png.itc").delete();
+        root.delete();
+    }
+
+    @Test
+    public void testGet () throws Exception {
+        HttpURLConnection connection = open("albums%2Fargb.itc/1");
+        assertEquals("Image should be found", 200, connection.getResponseCode());
+        assertEquals("Content type should be PNG", "image/png", connection.getContentType());
+        assertArrayEquals("ARGB image should be converted", png, read(connection));
+
+        String etag = connection.getHeaderField("ETag");
+        assertNotNull("Response should have an entity tag", etag);
+        connection = open("albums%2Fargb.itc/1");
+        connection.setRequestProperty("If-None-Match", "\"other\", " + etag);
+        assertEquals("Matching entity tag should not be sent again", 304, connection.getResponseCode());
+
+        // The relabelled image is passed through, so it is the raw ARGB payload.
+        byte[] raw = new MappedITCImageReader(new File(root, "png.itc")).readImage().getData();
+        connection = open("png.itc/0");
+        assertEquals("Passed through image should be found", 200, connection.getResponseCode());
+        assertArrayEquals("Passed through image should be the payload", raw, read(connection));
+    }
+
+    @Test
+    public void testRange () throws Exception {
+        HttpURLConnection connection = open("albums%2Fargb.itc/1");
+        connection.setRequestProperty("Range", "bytes=100-199");
+        assertEquals("Range should be partial content", 206, connection.getResponseCode());
+        assertEquals("Content range should be reported", "bytes 100-199/" + png.length,
+            connection.getHeaderField("Content-Range"));
+        assertArrayEquals("Range should be sent", Arrays.copyOfRange(png, 100, 200), read(connection));
+
+        connection = open("png.itc/0");
+        connection.setRequestProperty("Range", "bytes=-10");
+        assertEquals("Suffix range should be partial content", 206, connection.getResponseCode());
+        assertEquals("Suffix range should be the last bytes", 10, read(connection).length);
+
+        connection = open("albums%2Fargb.itc/1");
+        connection.setRequestProperty("Range", "bytes=" + png.length + "-");
+        assertEquals("Range past the end should be unsatisfiable", 416, connection.getResponseCode());
+    }
+
+    @Test
+    public void testNotFound () throws Exception {
+        assertEquals("Missing image should not be found", 404, open("png.itc/3").getResponseCode());
+        assertEquals("Missing file should not be found", 404, open("missing.itc/0").getResponseCode());
+        assertEquals("Bad index should not be found", 404, open("png.itc/first").getResponseCode());
+        File outside = File.createTempFile("outside", ".itc", root.getParentFile());
+        try {
+            Files.copy(new File(root, "png.itc").toPath(), outside.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            assertEquals("Files outside the root should not be served", 404,
+                open("..%2F" + outside.getName() + "/0").getResponseCode());
+        } finally {
+            outside.delete();
+        }
+    }
+
+    @Test
+    public void testRanges () {
+        assertArrayEquals("Closed range", new long[] {5, 9}, ArtworkServer.range("bytes=5-9", 100));
+        assertArrayEquals("Open range", new long[] {5, 99}, ArtworkServer.range("bytes=5-", 100));
+        assertArrayEquals("Suffix range", new long[] {90, 99}, ArtworkServer.range("bytes=-10", 100));
+        assertArrayEquals("Range is clamped to the end", new long[] {5, 99}, ArtworkServer.range("bytes=5-500", 100));
+        assertEquals("Start past the end", 0, ArtworkServer.range("bytes=100-", 100).length);
+        assertNull("Multiple ranges are ignored", ArtworkServer.range("bytes=1-2,5-6", 100));
+        assertNull("Other units are ignored", ArtworkServer.range("items=1-2", 100));
+    }
+
+    private static HttpURLConnection open (String path) throws Exception {
+        URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/artwork/" + path);
+        return (HttpURLConnection)url.openConnection();
+    }
+
+    private static byte[] read (HttpURLConnection connection) throws Exception {
+        InputStream input = connection.getInputStream();
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int read = input.read(buffer); read >= 0; read = input.read(buffer)) {
+                output.write(buffer, 0, read);
+            }
+            return output.toByteArray();
+        } finally {
+            input.close();
+        }
+    }
+}